@@ -0,0 +1,140 @@
+package com.github.sandin.artinjector;
+
+import android.app.Application;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * Resident agent of the app, the entry of the agent apk (`gradle agentApk`)
+ * <p>
+ * The agent listens on the abstract local socket `artinjector_<package_name>` and serves the
+ * requests of {@code AgentClient}. Any app of the device can connect to the socket, so only the
+ * connections of adb (uid shell or root) are accepted, and every request must start with the token
+ * which the injector passed to {@link #entry(Application, ClassLoader, ClassLoader, String)}.
+ */
+public class EntryPoint {
+    private static final String TAG = "ArtInjector";
+    private static final String SOCKET_NAME_PREFIX = "artinjector_";
+    // the token is shared with the agents of the later injections, which are loaded by other class loaders
+    private static final String TOKEN_PROPERTY = "artinjector.agent.token";
+    private static final String ENTRY_CLASS_NAME = "com.github.sandin.artinjector.EntryPoint";
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    /**
+     * Start the agent, or only replace the token if the agent of an earlier injection is running
+     *
+     * @param token token of the requests, a new one for every injection
+     * @return 0 if the agent is started, 1 if the token of the running agent is replaced
+     */
+    public static int entry(Application application, ClassLoader dexClassLoader, ClassLoader originClassLoader, String token) {
+        System.setProperty(TOKEN_PROPERTY, token);
+        String socketName = SOCKET_NAME_PREFIX + application.getPackageName();
+        LocalServerSocket server;
+        try {
+            server = new LocalServerSocket(socketName);
+        } catch (IOException e) {
+            Log.i(TAG, "agent is already running, the token is replaced, socket=" + socketName);
+            return 1;
+        }
+        Thread thread = new Thread(() -> serve(server, application, originClassLoader), "artinjector-agent");
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "agent is started, socket=" + socketName);
+        return 0;
+    }
+
+    private static void serve(LocalServerSocket server, Application application, ClassLoader originClassLoader) {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                Log.e(TAG, "agent exit", e);
+                return;
+            }
+            Thread thread = new Thread(() -> handle(socket, application, originClassLoader), "artinjector-agent-client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void handle(LocalSocket socket, Application application, ClassLoader originClassLoader) {
+        try (LocalSocket ignored = socket) {
+            Credentials credentials = socket.getPeerCredentials();
+            if (credentials.getUid() != ROOT_UID && credentials.getUid() != SHELL_UID) {
+                Log.w(TAG, "agent rejected the connection of uid " + credentials.getUid());
+                return;
+            }
+            socket.setSoTimeout(READ_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream output = socket.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (!isAuthorized(fields[0])) {
+                    Log.w(TAG, "agent rejected a request with an invalid token");
+                    output.write(("ERR\tinvalid token\n").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                String response;
+                try {
+                    response = "OK\t" + execute(fields, application, originClassLoader);
+                } catch (Throwable e) {
+                    Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                    response = "ERR\t" + String.valueOf(cause).replace('\t', ' ').replace('\n', ' ');
+                }
+                output.write((response + "\n").getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "agent connection error", e);
+        }
+    }
+
+    private static boolean isAuthorized(String token) {
+        String expected = System.getProperty(TOKEN_PROPERTY);
+        return expected != null
+                && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param fields token, command and arguments
+     * @return message of the OK response
+     */
+    private static String execute(String[] fields, Application application, ClassLoader originClassLoader) throws Exception {
+        String command = fields.length > 1 ? fields[1] : "";
+        switch (command) {
+            case "PING":
+                return String.valueOf(Process.myPid());
+            case "LOAD":
+                System.load(fields[2]);
+                Log.i(TAG, "agent loaded library: " + fields[2]);
+                return "";
+            case "APK":
+                DexClassLoader dexClassLoader = new DexClassLoader(fields[2], fields[3], fields[4], originClassLoader);
+                Class<?> entryClass = Class.forName(ENTRY_CLASS_NAME, true, dexClassLoader);
+                Method entryMethod = entryClass.getDeclaredMethod("entry", Application.class, ClassLoader.class, ClassLoader.class);
+                Object result = entryMethod.invoke(null, application, dexClassLoader, originClassLoader);
+                Log.i(TAG, "agent loaded apk: " + fields[2] + ", entry returned " + result);
+                return String.valueOf(result);
+            default:
+                throw new IllegalArgumentException("unknown command: " + command);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.sandin.artinjector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Device of the built-in adb client
+ * <p>
+ * Every operation is a short request on its own connection to the adb server, there are no monitor
+ * threads and no per-client handshakes. The devices and the debuggable processes are followed with
+ * the `host:track-devices` and `track-jdwp` services, the JDWP connection of the app is forwarded
+ * to a local port assigned by the adb server.
+ */
+public class AdbClientDevice implements AdbDevice {
+    private final String mSerial;
+    private final Map<String, String> mProperties = new ConcurrentHashMap<>();
+
+    public AdbClientDevice(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * Wait for the device, the wait finishes as soon as the device is online
+     *
+     * @param serial   device's serial, null for first device
+     * @param deadline deadline
+     * @return device, null on timeout
+     */
+    public static AdbClientDevice find(String serial, Deadline deadline) throws IOException {
+        String found = AdbConnection.track(null, "host:track-devices", deadline, update -> {
+            for (String line : update.split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2 && "device".equals(fields[1]) && (serial == null || serial.equals(fields[0]))) {
+                    return fields[0];
+                }
+            }
+            return null;
+        });
+        return found != null ? new AdbClientDevice(found) : null;
+    }
+
+    /**
+     * Wait for the devices, the wait finishes as soon as any device is online
+     *
+     * @param deadline deadline
+     * @return serials of all online devices, null on timeout
+     */
+    public static List<String> findAll(Deadline deadline) throws IOException {
+        return AdbConnection.track(null, "host:track-devices", deadline, update -> {
+            List<String> serials = new ArrayList<>();
+            for (String line : update.split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2 && "device".equals(fields[1])) {
+                    serials.add(fields[0]);
+                }
+            }
+            return serials.isEmpty() ? null : serials;
+        });
+    }
+
+    @Override
+    public String getSerialNumber() {
+        return mSerial;
+    }
+
+    @Override
+    public String getProperty(String name) {
+        String value = mProperties.get(name);
+        if (value == null) {
+            String out = executeShellCommand("getprop " + name, 5);
+            if (out == null || out.trim().isEmpty()) {
+                return null;
+            }
+            value = out.trim();
+            mProperties.put(name, value);
+        }
+        return value;
+    }
+
+    @Override
+    public String executeShellCommand(String command, long timeoutSeconds) {
+        try {
+            return AdbConnection.execShell(mSerial, command, (int) (timeoutSeconds * 1000));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wait for the process of the app, the wait finishes as soon as the process is listed by `track-jdwp`
+     */
+    @Override
+    public AppProcess findApp(String packageName, Deadline deadline) {
+        Integer pid;
+        try {
+            pid = AdbConnection.track(mSerial, "track-jdwp", deadline, update -> {
+                Set<String> jdwpPids = new HashSet<>(Arrays.asList(update.trim().split("\\s+")));
+                String out = executeShellCommand("pidof " + packageName, 5);
+                if (out == null) {
+                    return null;
+                }
+                for (String p : out.trim().split("\\s+")) {
+                    if (jdwpPids.contains(p)) {
+                        return Integer.valueOf(p);
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            System.out.println("[Warning] can not track the debuggable processes, error: " + e);
+            return null;
+        }
+        if (pid == null) {
+            return null;
+        }
+        return new AppProcess(packageName, pid, getAbi(pid), -1);
+    }
+
+    /**
+     * The abi of an app process is the abi of its zygote (zygote64 or zygote)
+     *
+     * @param pid pid of the app
+     * @return eg: 64-bit (arm64)
+     */
+    private String getAbi(int pid) {
+        String zygote = executeShellCommand("cat /proc/$(cut -d' ' -f4 /proc/" + pid + "/stat)/cmdline", 5);
+        boolean is64Bit = zygote != null && zygote.trim().endsWith("64");
+        String cpuAbi = getProperty("ro.product.cpu.abi");
+        boolean isX86 = cpuAbi != null && cpuAbi.startsWith("x86");
+        if (is64Bit) {
+            return isX86 ? "64-bit (x86)" : "64-bit (arm64)";
+        }
+        return isX86 ? "32-bit (x86)" : "32-bit (arm32)";
+    }
+
+    @Override
+    public int forwardJdwp(AppProcess app) throws IOException {
+        return AdbConnection.forward(mSerial, "jdwp:" + app.getPid());
+    }
+
+    @Override
+    public void removeJdwpForward(int port) {
+        try {
+            AdbConnection.removeForward(mSerial, port);
+        } catch (IOException e) {
+            System.out.println("[Warning] can not remove forward tcp:" + port + ", error: " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mSerial;
+    }
+}
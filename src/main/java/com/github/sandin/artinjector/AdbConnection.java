@@ -0,0 +1,449 @@
+package com.github.sandin.artinjector;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Raw connection to the adb server (host side wire protocol)
+ * <p>
+ * Used for the services which ddmlib does not expose, such as the shell protocol v2,
+ * which supports stdin streaming and reports the exit code of the remote command.
+ */
+public class AdbConnection implements Closeable {
+    private static final int DEFAULT_ADB_PORT = 5037;
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int DETECT_TIMEOUT = 500;
+
+    // shell protocol v2 packet ids
+    private static final int SHELL_ID_STDIN = 0;
+    private static final int SHELL_ID_STDOUT = 1;
+    private static final int SHELL_ID_STDERR = 2;
+    private static final int SHELL_ID_EXIT = 3;
+    private static final int SHELL_ID_CLOSE_STDIN = 4;
+    // adbd's shell protocol buffer is 4KB including the 5 bytes header
+    private static final int SHELL_MAX_DATA_SIZE = 4096 - 5;
+
+    private static final int SYNC_MAX_DATA_SIZE = 64 * 1024;
+
+    // address of the adb server which takes precedence over the environment, eg: a fake server of the tests
+    private static volatile InetSocketAddress sServerAddress = null;
+
+    private final Socket mSocket;
+    private final DataInputStream mInput;
+    private final OutputStream mOutput;
+
+    private AdbConnection(Socket socket) throws IOException {
+        mSocket = socket;
+        mInput = new DataInputStream(socket.getInputStream());
+        mOutput = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    /**
+     * Get the address of the local adb server, `ADB_SERVER_SOCKET` (eg: tcp:localhost:5037, tcp:[::1]:5037)
+     * takes precedence over `ANDROID_ADB_SERVER_PORT`
+     *
+     * @return socket address
+     */
+    public static InetSocketAddress getServerAddress() {
+        if (sServerAddress != null) {
+            return sServerAddress;
+        }
+        String serverSocket = System.getenv("ADB_SERVER_SOCKET");
+        if (serverSocket != null && serverSocket.startsWith("tcp:")) {
+            String address = serverSocket.substring("tcp:".length());
+            int index = address.lastIndexOf(':');
+            try {
+                if (index == -1) {
+                    return new InetSocketAddress("127.0.0.1", Integer.parseInt(address));
+                }
+                String host = address.substring(0, index);
+                if (host.startsWith("[") && host.endsWith("]")) {
+                    host = host.substring(1, host.length() - 1); // ipv6
+                }
+                return new InetSocketAddress(host, Integer.parseInt(address.substring(index + 1)));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return getDdmlibServerAddress();
+    }
+
+    /**
+     * @param address address of the adb server, null to read it from the environment
+     */
+    static void setServerAddress(InetSocketAddress address) {
+        sServerAddress = address;
+    }
+
+    /**
+     * Get the address of the adb server which ddmlib connects to, ddmlib only reads `ANDROID_ADB_SERVER_PORT`
+     *
+     * @return socket address
+     */
+    public static InetSocketAddress getDdmlibServerAddress() {
+        int port = DEFAULT_ADB_PORT;
+        String envPort = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (envPort != null) {
+            try {
+                port = Integer.parseInt(envPort.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    /**
+     * Open a connection to the local adb server
+     *
+     * @return connection
+     */
+    public static AdbConnection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(getServerAddress(), CONNECT_TIMEOUT);
+            return new AdbConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Detect the local adb server with the `host:version` request
+     *
+     * @return version of the adb server, -1 if the server is not running
+     */
+    public static int getServerVersion() {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(DETECT_TIMEOUT);
+            socket.connect(getServerAddress(), DETECT_TIMEOUT);
+            try (AdbConnection connection = new AdbConnection(socket)) {
+                connection.sendRequest("host:version");
+                return Integer.parseInt(connection.readLengthPrefixedString(), 16);
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Query the features of a device, eg: shell_v2,cmd,stat_v2
+     *
+     * @param serial device serial
+     * @return features
+     */
+    public static List<String> getFeatures(String serial) throws IOException {
+        try (AdbConnection connection = open()) {
+            connection.sendRequest("host-serial:" + serial + ":features");
+            return Arrays.asList(connection.readLengthPrefixedString().trim().split(","));
+        }
+    }
+
+    /**
+     * Send a request and wait for the `OKAY` status
+     *
+     * @param request request, eg: host:version
+     */
+    public void sendRequest(String request) throws IOException {
+        byte[] data = request.getBytes(StandardCharsets.UTF_8);
+        mOutput.write(String.format("%04x", data.length).getBytes(StandardCharsets.US_ASCII));
+        mOutput.write(data);
+        mOutput.flush();
+        readStatus();
+    }
+
+    /**
+     * Switch this connection to the transport of a device
+     *
+     * @param serial device serial
+     */
+    public void setTransport(String serial) throws IOException {
+        sendRequest("host:transport:" + serial);
+    }
+
+    public String readLengthPrefixedString() throws IOException {
+        int length = Integer.parseInt(readString(4), 16);
+        return readString(length);
+    }
+
+    private void readStatus() throws IOException {
+        String status = readString(4);
+        if ("OKAY".equals(status)) {
+            return;
+        }
+        if ("FAIL".equals(status)) {
+            throw new IOException("adb request fail: " + readLengthPrefixedString());
+        }
+        throw new IOException("unexpected adb response: " + status);
+    }
+
+    private String readString(int length) throws IOException {
+        byte[] data = new byte[length];
+        mInput.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run a command with the shell protocol v2 (requires the `shell_v2` feature of device)
+     *
+     * @param serial  device serial
+     * @param command shell command
+     * @param stdin   data for stdin, nullable
+     * @param stdout  receiver of stdout and stderr, nullable
+     * @return exit code of the command
+     */
+    public static int execShellV2(String serial, String command, InputStream stdin, OutputStream stdout) throws IOException {
+        return execShellV2(serial, command, stdin, stdout, Deadline.never());
+    }
+
+    /**
+     * Run a command with the shell protocol v2, the connection is closed when the deadline expires
+     *
+     * @param deadline deadline of the command
+     * @see #execShellV2(String, String, InputStream, OutputStream)
+     */
+    public static int execShellV2(String serial, String command, InputStream stdin, OutputStream stdout, Deadline deadline) throws IOException {
+        deadline.throwIfExpired("shell");
+        try (AdbConnection connection = open(); Deadline.Watch ignored = deadline.watch(connection)) {
+            connection.setTransport(serial);
+            connection.sendRequest("shell,v2,raw:" + command);
+            if (stdin != null) {
+                byte[] buffer = new byte[SHELL_MAX_DATA_SIZE];
+                int read;
+                while ((read = stdin.read(buffer)) != -1) {
+                    connection.writeShellPacket(SHELL_ID_STDIN, buffer, read);
+                }
+            }
+            connection.writeShellPacket(SHELL_ID_CLOSE_STDIN, new byte[0], 0);
+            connection.mOutput.flush();
+            return connection.readShellOutput(stdout);
+        } catch (IOException e) {
+            // the connection is closed by the deadline
+            deadline.throwIfExpired("shell `" + command + "`");
+            throw e;
+        }
+    }
+
+    /**
+     * Run a command with the plain shell service, stdout and stderr are merged
+     *
+     * @param serial  device serial
+     * @param command shell command
+     * @param timeout max milliseconds to wait for the output
+     * @return output of the command
+     */
+    public static String execShell(String serial, String command, int timeout) throws IOException {
+        try (AdbConnection connection = open()) {
+            connection.mSocket.setSoTimeout(timeout);
+            connection.setTransport(serial);
+            connection.sendRequest("shell:" + command);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = connection.mInput.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Follow a tracking service until the matcher accepts an update
+     *
+     * @param serial   device serial, null for the host services
+     * @param service  eg: host:track-devices, track-jdwp
+     * @param deadline deadline
+     * @param matcher  called with the content of each update, returns null to wait for the next update
+     * @return result of the matcher, null on timeout or cancellation
+     */
+    public static <T> T track(String serial, String service, Deadline deadline, Function<String, T> matcher) throws IOException {
+        try (AdbConnection connection = open()) {
+            if (serial != null) {
+                connection.setTransport(serial);
+            }
+            connection.sendRequest(service);
+            // wake up the read on cancel, the watch is removed from the deadline when the tracking ends
+            try (Deadline.Watch ignored = deadline.watch(connection)) {
+                while (!deadline.isExpired()) {
+                    connection.mSocket.setSoTimeout((int) Math.max(1, deadline.remaining()));
+                    String update;
+                    try {
+                        update = connection.readLengthPrefixedString();
+                    } catch (SocketTimeoutException e) {
+                        return null;
+                    } catch (IOException e) {
+                        if (deadline.isExpired()) {
+                            return null;
+                        }
+                        throw e;
+                    }
+                    T result = matcher.apply(update);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Forward a local tcp port to a device socket
+     *
+     * @param serial device serial
+     * @param remote eg: jdwp:1234
+     * @return local port assigned by the adb server
+     */
+    public static int forward(String serial, String remote) throws IOException {
+        try (AdbConnection connection = open()) {
+            // the first OKAY is for the connection, the second one is for the forward
+            connection.sendRequest("host-serial:" + serial + ":forward:tcp:0;" + remote);
+            connection.readStatus();
+            return Integer.parseInt(connection.readLengthPrefixedString().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected forward response", e);
+        }
+    }
+
+    /**
+     * Remove a forward created by {@link #forward(String, String)}
+     *
+     * @param serial device serial
+     * @param port   local port
+     */
+    public static void removeForward(String serial, int port) throws IOException {
+        try (AdbConnection connection = open()) {
+            connection.sendRequest("host-serial:" + serial + ":killforward:tcp:" + port);
+        }
+    }
+
+    /**
+     * Open a sync session to a device
+     *
+     * @param serial device serial
+     * @return connection in sync mode
+     */
+    public static AdbConnection openSync(String serial) throws IOException {
+        return openService(serial, "sync:");
+    }
+
+    /**
+     * Open a raw stream to a device service
+     *
+     * @param serial  device serial
+     * @param service eg: exec:sh
+     * @return connection, use {@link #getInputStream()} and {@link #getOutputStream()} for the stream
+     */
+    public static AdbConnection openService(String serial, String service) throws IOException {
+        AdbConnection connection = open();
+        try {
+            connection.setTransport(serial);
+            connection.sendRequest(service);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    /**
+     * @param timeout max milliseconds to block on a read, 0 for infinite
+     */
+    public void setTimeout(int timeout) throws IOException {
+        mSocket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Push the content of a stream to the device, the connection must be in sync mode
+     *
+     * @param in         content
+     * @param remotePath remote file path
+     * @param mode       file mode, eg: 0644
+     */
+    public void syncPush(InputStream in, String remotePath, int mode) throws IOException {
+        byte[] path = (remotePath + "," + mode).getBytes(StandardCharsets.UTF_8);
+        writeSyncHeader("SEND", path.length);
+        mOutput.write(path);
+        byte[] buffer = new byte[SYNC_MAX_DATA_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            writeSyncHeader("DATA", read);
+            mOutput.write(buffer, 0, read);
+        }
+        writeSyncHeader("DONE", (int) (System.currentTimeMillis() / 1000));
+        mOutput.flush();
+
+        byte[] header = new byte[8];
+        mInput.readFully(header);
+        String id = new String(header, 0, 4, StandardCharsets.US_ASCII);
+        int length = (header[4] & 0xFF) | (header[5] & 0xFF) << 8 | (header[6] & 0xFF) << 16 | (header[7] & 0xFF) << 24;
+        if ("FAIL".equals(id)) {
+            throw new IOException("sync push fail: " + readString(length));
+        } else if (!"OKAY".equals(id)) {
+            throw new IOException("unexpected sync response: " + id);
+        }
+    }
+
+    private void writeSyncHeader(String id, int value) throws IOException {
+        mOutput.write(id.getBytes(StandardCharsets.US_ASCII));
+        mOutput.write(value & 0xFF);
+        mOutput.write((value >> 8) & 0xFF);
+        mOutput.write((value >> 16) & 0xFF);
+        mOutput.write((value >> 24) & 0xFF);
+    }
+
+    private void writeShellPacket(int id, byte[] data, int length) throws IOException {
+        mOutput.write(id);
+        mOutput.write(length & 0xFF);
+        mOutput.write((length >> 8) & 0xFF);
+        mOutput.write((length >> 16) & 0xFF);
+        mOutput.write((length >> 24) & 0xFF);
+        mOutput.write(data, 0, length);
+    }
+
+    private int readShellOutput(OutputStream stdout) throws IOException {
+        byte[] header = new byte[5];
+        while (true) {
+            try {
+                mInput.readFully(header);
+            } catch (EOFException e) {
+                throw new IOException("shell closed without exit code");
+            }
+            int length = (header[1] & 0xFF) | (header[2] & 0xFF) << 8 | (header[3] & 0xFF) << 16 | (header[4] & 0xFF) << 24;
+            byte[] data = new byte[length];
+            mInput.readFully(data);
+            if (header[0] == SHELL_ID_EXIT) {
+                return length > 0 ? data[0] & 0xFF : 0;
+            } else if ((header[0] == SHELL_ID_STDOUT || header[0] == SHELL_ID_STDERR) && stdout != null) {
+                stdout.write(data);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
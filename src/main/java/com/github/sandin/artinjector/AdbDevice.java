@@ -0,0 +1,51 @@
+package com.github.sandin.artinjector;
+
+import java.io.IOException;
+
+/**
+ * The operations of a device used by the injector, implemented with ddmlib ({@link DdmlibDevice})
+ * or with the built-in adb client ({@link AdbClientDevice})
+ */
+public interface AdbDevice {
+
+    String getSerialNumber();
+
+    /**
+     * @param name property name, eg: ro.build.version.sdk
+     * @return property value, null if unknown
+     */
+    String getProperty(String name);
+
+    /**
+     * Run a shell command
+     *
+     * @param command        shell command
+     * @param timeoutSeconds max time to wait for the output
+     * @return output of the command, null on failure
+     */
+    String executeShellCommand(String command, long timeoutSeconds);
+
+    /**
+     * Wait for the debuggable process of the app
+     *
+     * @param packageName package name of application
+     * @param deadline    deadline
+     * @return app process, null on timeout
+     */
+    AppProcess findApp(String packageName, Deadline deadline);
+
+    /**
+     * Make the JDWP connection of the app reachable from the host
+     *
+     * @param app app process
+     * @return local port
+     */
+    int forwardJdwp(AppProcess app) throws IOException;
+
+    /**
+     * Release the local port returned by {@link #forwardJdwp(AppProcess)}
+     *
+     * @param port local port
+     */
+    void removeJdwpForward(int port);
+}
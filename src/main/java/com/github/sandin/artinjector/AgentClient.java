@@ -0,0 +1,161 @@
+package com.github.sandin.artinjector;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client of the resident agent in the app
+ * <p>
+ * The agent is started by the entry of an injected apk, it listens on an abstract local socket
+ * (default: `artinjector_<package_name>`) which is forwarded by adb. The requests and responses are
+ * lines of tab separated fields, so the later loads need neither a debugger nor a breakpoint:
+ * <pre>
+ * token  PING                                          -> OK  pid
+ * token  LOAD  path                                    -> OK  | ERR  message  (System.load)
+ * token  APK   apkPath  codeCacheDir  librarySearchPath -> OK  | ERR  message  (new DexClassLoader + EntryPoint.entry)
+ * </pre>
+ * Any app of the device can connect to the socket, so every request starts with the token which the
+ * injector passed to the entry of the agent, see {@link #getTokenFile(String, String)}.
+ */
+public class AgentClient implements Closeable {
+    public static final String DEFAULT_SOCKET_NAME_PREFIX = "artinjector_";
+
+    private static final String RESPONSE_OK = "OK";
+    private static final String RESPONSE_ERROR = "ERR";
+
+    private final String mSerial;
+    private final int mPort;
+    private final String mToken;
+    private final Socket mSocket;
+    private final BufferedReader mReader;
+    private final OutputStream mOutput;
+
+    private AgentClient(String serial, int port, String token, Socket socket) throws IOException {
+        mSerial = serial;
+        mPort = port;
+        mToken = token;
+        mSocket = socket;
+        mReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        mOutput = socket.getOutputStream();
+    }
+
+    /**
+     * @param packageName package name of the app
+     * @return eg: artinjector_com.example.app
+     */
+    public static String getDefaultSocketName(String packageName) {
+        return DEFAULT_SOCKET_NAME_PREFIX + packageName;
+    }
+
+    /**
+     * The injector writes the token of an agent when the entry of the agent returns, the agent of
+     * the next injection into the app replaces it
+     *
+     * @param serial      device serial
+     * @param packageName package name of the app
+     * @return eg: ~/.artinjector/agent-emulator-5554-com.example.app.token
+     */
+    static File getTokenFile(String serial, String packageName) {
+        return TokenFile.get("agent-" + serial.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + packageName + ".token");
+    }
+
+    /**
+     * Connect to the agent of an app, the connection is checked with a ping
+     *
+     * @param serial     device serial
+     * @param socketName abstract socket name of the agent
+     * @param token      token of the agent, sent with every request
+     * @param timeout    timeout of every request in milliseconds
+     * @return connected client
+     * @throws IOException the agent is not running, or it rejected the token
+     */
+    public static AgentClient connect(String serial, String socketName, String token, int timeout) throws IOException {
+        int port = AdbConnection.forward(serial, "localabstract:" + socketName);
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            AgentClient client = new AgentClient(serial, port, token, socket);
+            // adb accepts the local connection even if nobody listens on the device, the ping fails then
+            client.request("PING");
+            return client;
+        } catch (IOException e) {
+            socket.close();
+            AdbConnection.removeForward(serial, port);
+            throw e;
+        }
+    }
+
+    /**
+     * Load a library file into the app
+     *
+     * @param path remote path of the so file
+     * @return message of the agent
+     */
+    public String loadLibrary(String path) throws IOException {
+        return request("LOAD", path);
+    }
+
+    /**
+     * Load an apk into the app and call its entry
+     *
+     * @param apkPath           remote path of the apk file
+     * @param codeCacheDir      optimized dex directory
+     * @param librarySearchPath library search path of the dex class loader
+     * @return message of the agent
+     */
+    public String loadApk(String apkPath, String codeCacheDir, String librarySearchPath) throws IOException {
+        return request("APK", apkPath, codeCacheDir, librarySearchPath);
+    }
+
+    /**
+     * Send a request and wait for the response
+     *
+     * @param fields command and arguments
+     * @return message of an OK response
+     * @throws IOException connection error or ERR response
+     */
+    private String request(String... fields) throws IOException {
+        mOutput.write((mToken + "\t" + String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        mOutput.flush();
+        String line = mReader.readLine();
+        if (line == null) {
+            throw new IOException("agent closed the connection");
+        }
+        int index = line.indexOf('\t');
+        String status = index >= 0 ? line.substring(0, index) : line;
+        String message = index >= 0 ? line.substring(index + 1) : "";
+        if (RESPONSE_OK.equals(status)) {
+            return message;
+        } else if (RESPONSE_ERROR.equals(status)) {
+            throw new AgentException(message);
+        }
+        throw new IOException("unexpected agent response: " + line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mSocket.close();
+        } finally {
+            AdbConnection.removeForward(mSerial, mPort);
+        }
+    }
+
+    /**
+     * The agent received the request but failed to execute it
+     */
+    public static class AgentException extends IOException {
+        public AgentException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.sandin.artinjector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader of the zip layout of an apk file (central directory and local headers)
+ */
+public class ApkFile {
+    public static final int METHOD_STORED = 0;
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /**
+     * Entry of the apk
+     */
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mDataOffset;
+
+        Entry(String name, int method, long compressedSize, long dataOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mDataOffset = dataOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        /**
+         * @return offset of the entry data in the apk file
+         */
+        public long getDataOffset() {
+            return mDataOffset;
+        }
+
+        /**
+         * @return the entry can be mapped by the linker straight from the apk
+         */
+        public boolean isPageAligned() {
+            return mMethod == METHOD_STORED && mDataOffset % PAGE_SIZE == 0;
+        }
+    }
+
+    /**
+     * Read the entries whose name starts with the prefix, the local header of each matched entry is read to
+     * find out where its data begins
+     *
+     * @param apkFile apk file
+     * @param prefix  name prefix, eg: lib/arm64-v8a/
+     * @return entries
+     */
+    public static List<Entry> readEntries(File apkFile, String prefix) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(apkFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+
+            // find the end of central directory record
+            int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd == -1) {
+                throw new IOException("Not a zip file: " + apkFile);
+            }
+            long centralDirectorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long centralDirectoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+            if (centralDirectoryOffset == 0xFFFFFFFFL || centralDirectorySize == 0xFFFFFFFFL) {
+                throw new IOException("Zip64 is not supported: " + apkFile);
+            }
+
+            ByteBuffer centralDirectory = read(channel, centralDirectoryOffset, (int) centralDirectorySize);
+            int position = 0;
+            while (position + CENTRAL_DIRECTORY_HEADER_SIZE <= centralDirectorySize
+                    && centralDirectory.getInt(position) == CENTRAL_DIRECTORY_SIGNATURE) {
+                int method = centralDirectory.getShort(position + 10) & 0xFFFF;
+                long compressedSize = centralDirectory.getInt(position + 20) & 0xFFFFFFFFL;
+                int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+                int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+                int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+                long localHeaderOffset = centralDirectory.getInt(position + 42) & 0xFFFFFFFFL;
+                byte[] nameBytes = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    nameBytes[i] = centralDirectory.get(position + CENTRAL_DIRECTORY_HEADER_SIZE + i);
+                }
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+                if (name.startsWith(prefix)) {
+                    ByteBuffer localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+                    if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                        throw new IOException("Bad local header of entry: " + name);
+                    }
+                    long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE
+                            + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+                    entries.add(new Entry(name, method, compressedSize, dataOffset));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -3,7 +3,11 @@ package com.github.sandin.artinjector;
 import org.apache.commons.cli.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Application
@@ -14,19 +18,92 @@ public class App {
 
     private static final String USAGE_INJECT = "artinjector -i <injecto_so> -p <package_name>";
     private static final String USAGE_GETABI = "artinjector -p <package_name> -a";
+    private static final String USAGE_DAEMON = "artinjector --daemon [port]";
 
     public static void main(String[] args) throws ArtInjectException {
         System.out.println("[Success] Android VM Injector v1.0");
         System.out.println("[Success] OS is : " + Utils.getOsName());
+        CommandLine cl = parseArgs(args);
+        if (cl == null) {
+            System.exit(-1);
+            return;
+        }
+
+        if (cl.hasOption("daemon")) {
+            int port = Integer.parseInt(cl.getOptionValue("daemon", String.valueOf(InjectorDaemon.DEFAULT_PORT)));
+            try {
+                ArtInjector artInjector = createArtInjector(cl);
+                configure(artInjector, cl);
+                InjectorDaemon daemon = new InjectorDaemon(artInjector, port);
+                if (cl.hasOption("jobQueue")) {
+                    InjectScheduler scheduler = new InjectScheduler(artInjector, new File(cl.getOptionValue("jobQueue")));
+                    if (cl.hasOption("maxJobs")) {
+                        scheduler.setMaxJobs(Integer.parseInt(cl.getOptionValue("maxJobs")));
+                    }
+                    if (cl.hasOption("maxJobsPerDevice")) {
+                        scheduler.setMaxJobsPerDevice(Integer.parseInt(cl.getOptionValue("maxJobsPerDevice")));
+                    }
+                    daemon.setScheduler(scheduler);
+                }
+                daemon.serve();
+            } catch (IOException e) {
+                System.err.println("[Error] ErrorInfo: can not start daemon, " + e.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (cl.hasOption("useDaemon")) {
+            int port = Integer.parseInt(cl.getOptionValue("useDaemon", String.valueOf(InjectorDaemon.DEFAULT_PORT)));
+            try {
+                System.exit(InjectorDaemon.submit(port, toAbsoluteInjectPaths(args)));
+                return;
+            } catch (IOException e) {
+                System.out.println("[Warning] daemon is not running on port " + port + ", run locally, error: " + e);
+            }
+        }
+
+        ArtInjector artInjector = createArtInjector(cl);
+        configure(artInjector, cl);
+        System.exit(run(artInjector, cl));
+    }
+
+    /**
+     * The daemon may run in another working dir, resolve the relative paths of the injected files
+     *
+     * @param args arguments
+     * @return arguments with absolute paths
+     */
+    private static String[] toAbsoluteInjectPaths(String[] args) {
+        String[] jobArgs = args.clone();
+        for (int i = 0; i + 1 < jobArgs.length; i++) {
+            if ("-i".equals(jobArgs[i]) || "--injectso".equals(jobArgs[i])) {
+                String[] paths = jobArgs[i + 1].split(",");
+                for (int j = 0; j < paths.length; j++) {
+                    paths[j] = new File(paths[j]).getAbsolutePath();
+                }
+                jobArgs[i + 1] = String.join(",", paths);
+            }
+        }
+        return jobArgs;
+    }
+
+    /**
+     * Parse the command line, print the usage on error
+     *
+     * @param args arguments
+     * @return null if the arguments are invalid
+     */
+    static CommandLine parseArgs(String[] args) {
         DefaultParser parser = new DefaultParser();
         Options options = new Options();
         options.addOption(
                 Option.builder("p")
                         .longOpt("package")
                         .argName("package")
-                        .desc("package name")
+                        .desc("package name, required unless running as daemon")
                         .hasArg(true)
-                        .required(true)
+                        .required(false)
                         .build());
 
         options.addOption(
@@ -42,7 +119,7 @@ public class App {
                 Option.builder("s")
                         .longOpt("serial")
                         .argName("serial")
-                        .desc("device serial")
+                        .desc("device serial, serials separated by `,` or `all` to inject many devices at once")
                         .hasArg(true)
                         .required(false)
                         .build());
@@ -92,35 +169,249 @@ public class App {
                         .required(false)
                         .build());
 
+        options.addOption(
+                Option.builder("pushThreads")
+                        .longOpt("pushThreads")
+                        .argName("pushThreads")
+                        .desc("number of parallel sync sessions used to push files")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("noStreamPush")
+                        .longOpt("noStreamPush")
+                        .argName("noStreamPush")
+                        .desc("push files via /data/local/tmp instead of streaming them into the app data dir")
+                        .hasArg(false)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("deltaPush")
+                        .longOpt("deltaPush")
+                        .argName("deltaPush")
+                        .desc("only send the changed blocks of large files which already exist on the device")
+                        .hasArg(false)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("compress")
+                        .longOpt("compress")
+                        .argName("auto|always|never")
+                        .desc("compress the pushed files on the wire, default is auto")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("extractCache")
+                        .longOpt("extractCache")
+                        .argName("dir")
+                        .desc("cache dir of the library files extracted from apk, `none` to disable the cache")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("extractCacheSize")
+                        .longOpt("extractCacheSize")
+                        .argName("MB")
+                        .desc("max size of the extraction cache in MB")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("extractLibs")
+                        .longOpt("extractLibs")
+                        .argName("extractLibs")
+                        .desc("always extract the library files of the apk instead of loading them from the apk in place")
+                        .hasArg(false)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("agent")
+                        .longOpt("agent")
+                        .argName("socket_name")
+                        .desc("load the files through the resident agent of the app (default socket " + AgentClient.DEFAULT_SOCKET_NAME_PREFIX + "<package_name>), attach as jdwp debugger if the agent is not running")
+                        .hasArg(true)
+                        .optionalArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("adbBackend")
+                        .longOpt("adbBackend")
+                        .argName("ddmlib|builtin")
+                        .desc("implementation of the adb operations, default is ddmlib")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("daemon")
+                        .longOpt("daemon")
+                        .argName("port")
+                        .desc("run as daemon, keep the adb bridge alive and accept jobs on the loopback port (default " + InjectorDaemon.DEFAULT_PORT + ")")
+                        .hasArg(true)
+                        .optionalArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("useDaemon")
+                        .longOpt("useDaemon")
+                        .argName("port")
+                        .desc("submit the job to the daemon, run locally if the daemon is not running")
+                        .hasArg(true)
+                        .optionalArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("jobQueue")
+                        .longOpt("jobQueue")
+                        .argName("journal")
+                        .desc("daemon only, queue the inject jobs, the queue is persisted in the journal file")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("maxJobs")
+                        .longOpt("maxJobs")
+                        .argName("n")
+                        .desc("max number of queued jobs which run at the same time, default is " + InjectScheduler.DEFAULT_MAX_JOBS)
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("maxJobsPerDevice")
+                        .longOpt("maxJobsPerDevice")
+                        .argName("n")
+                        .desc("max number of queued jobs which run on one device at the same time, default is " + InjectScheduler.DEFAULT_MAX_JOBS_PER_DEVICE)
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
+        options.addOption(
+                Option.builder("priority")
+                        .longOpt("priority")
+                        .argName("n")
+                        .desc("priority of the queued job, jobs with a higher priority run first, default is 0")
+                        .hasArg(true)
+                        .required(false)
+                        .build());
+
         CommandLine cl;
         try {
             cl = parser.parse(options, args);
         } catch (ParseException e) {
+            cl = null;
+        }
+        if (cl == null || (!cl.hasOption("daemon") && !cl.hasOption("package"))) {
             HelpFormatter hf = new HelpFormatter();
-            hf.printHelp(USAGE_INJECT + "\n or \n" + USAGE_GETABI, options);
-            System.exit(-1);
-            return;
+            hf.printHelp(USAGE_INJECT + "\n or \n" + USAGE_GETABI + "\n or \n" + USAGE_DAEMON, options);
+            return null;
         }
+        return cl;
+    }
 
-
+    static ArtInjector createArtInjector(CommandLine cl) {
         String adbPath = "adb";
         if (cl.hasOption("adb")) {
             adbPath = cl.getOptionValue("adbPath");
         }
 
+        int serverVersion = AdbConnection.getServerVersion();
+        if (serverVersion != -1 && !cl.hasOption("adb")) {
+            System.out.println("[Success] Use running adb server, address=" + AdbConnection.getServerAddress() + ", version=" + serverVersion);
+            return new ArtInjector();
+        } else {
+            System.out.println("[Success] adb path is : " + adbPath);
+            return new ArtInjector(adbPath);
+        }
+    }
+
+    /**
+     * Apply the push options of the command line
+     *
+     * @param artInjector injector
+     * @param cl          command line
+     */
+    static void configure(ArtInjector artInjector, CommandLine cl) {
+        if (cl.hasOption("adbBackend")) {
+            artInjector.setBackend(ArtInjector.Backend.valueOf(cl.getOptionValue("adbBackend").toUpperCase()));
+        }
+        if (artInjector.getBackend() == ArtInjector.Backend.DDMLIB
+                && !AdbConnection.getServerAddress().equals(AdbConnection.getDdmlibServerAddress())) {
+            // ddmlib always connects to 127.0.0.1:ANDROID_ADB_SERVER_PORT, it ignores ADB_SERVER_SOCKET
+            System.out.println("[Warning] ddmlib can not connect to the adb server at " + AdbConnection.getServerAddress() + ", use the builtin adb client");
+            artInjector.setBackend(ArtInjector.Backend.BUILTIN);
+        }
+
+        if (cl.hasOption("pushThreads")) {
+            artInjector.setPushParallelism(Integer.parseInt(cl.getOptionValue("pushThreads")));
+        }
+
+        if (cl.hasOption("noStreamPush")) {
+            artInjector.setStreamingPush(false);
+        }
+
+        if (cl.hasOption("deltaPush")) {
+            artInjector.setDeltaPush(true);
+        }
+
+        if (cl.hasOption("compress")) {
+            artInjector.setCompression(TransferCompressor.Mode.valueOf(cl.getOptionValue("compress").toUpperCase()));
+        }
+
+        if (cl.hasOption("extractCache") || cl.hasOption("extractCacheSize")) {
+            String cacheDir = cl.getOptionValue("extractCache");
+            if ("none".equals(cacheDir)) {
+                artInjector.setExtractionCache(null);
+            } else {
+                long maxSize = ExtractionCache.DEFAULT_MAX_SIZE;
+                if (cl.hasOption("extractCacheSize")) {
+                    maxSize = Long.parseLong(cl.getOptionValue("extractCacheSize")) * 1024 * 1024;
+                }
+                artInjector.setExtractionCache(new ExtractionCache(
+                        cacheDir != null ? new File(cacheDir) : ExtractionCache.getDefaultCacheDir(), maxSize));
+            }
+        }
+
+        if (cl.hasOption("extractLibs")) {
+            artInjector.setLoadLibrariesFromApk(false);
+        }
+
+        if (cl.hasOption("agent")) {
+            artInjector.setAgentSocketName(cl.getOptionValue("agent", ""));
+        }
+
+        // the workers of a fleet or a queue launch the application of their own device
+        artInjector.setLaunch(cl.hasOption("l"), cl.getOptionValue("ac"));
+    }
+
+    /**
+     * Run the job of the command line
+     *
+     * @param artInjector injector
+     * @param cl          command line
+     * @return exit code
+     */
+    static int run(ArtInjector artInjector, CommandLine cl) throws ArtInjectException {
         String packageName = cl.getOptionValue("package");
         String injectSo = cl.getOptionValue("injectso");
         String serial = cl.getOptionValue("serial");
         String activityName = cl.getOptionValue("ac");
         String breakPoints = cl.getOptionValue("breakOn");
-        ArtInjector artInjector;
 
-        if (Utils.checkAdbProcess(Utils.getOsName()) && !cl.hasOption("adb")) {
-            System.out.println("[Success] Use adb.exe in System Processes");
-            artInjector = new ArtInjector();
-        } else {
-            System.out.println("[Success] adb path is : " + adbPath);
-            artInjector = new ArtInjector(adbPath);
+        if (serial != null && (serial.equals("all") || serial.contains(","))) {
+            return runFleet(artInjector, cl, serial);
         }
 
         if (cl.hasOption("a")) {
@@ -129,24 +420,18 @@ public class App {
                 System.out.println("[Success] Application abi is : " + appAbi);
             } catch (ArtInjectException e) {
                 System.err.println("[Error] ErrorInfo: " + e.getMessage());
-                System.exit(-1);
+                return -1;
             }
         } else {
             if (cl.hasOption("l")) {
                 artInjector.launchApplication(serial, packageName, activityName, 10 * 1000);
             }
             if (!cl.hasOption("i")) {
-                System.exit(0);
+                return 0;
             } else {
-                String[] soPaths = injectSo.split(",");
-                System.out.println(Arrays.toString(soPaths));
-                if (!Utils.checkSoPaths(soPaths)) {
-                    System.out.println("[ErrorCode]: " + ErrorCodes.SOFILE_NOT_EXIST);
-                    System.exit(-1);
-                }
-                File[] soFiles = new File[soPaths.length];
-                for (int i = 0; i < soFiles.length; i++) {
-                    soFiles[i] = new File(soPaths[i]);
+                File[] soFiles = getInjectFiles(injectSo);
+                if (soFiles == null) {
+                    return -1;
                 }
                 long timeout = 30 * 1000;
                 try {
@@ -154,13 +439,145 @@ public class App {
 
                 } catch (ArtInjectException e) {
                     System.err.println("[Error] ErrorInfo: " + e.getMessage());
-                    System.exit(-1);
+                    return -1;
                 }
                 //artInjector.dispose();
                 System.out.println("[Success] Inject: OK");
             }
 
         }
-        System.exit(0);
+        return 0;
+    }
+
+    /**
+     * Run the job of the command line on many devices
+     *
+     * @param artInjector injector
+     * @param cl          command line
+     * @param serials     `all` or the serials separated by `,`
+     * @return exit code, 0 only if all the devices succeeded
+     */
+    private static int runFleet(ArtInjector artInjector, CommandLine cl, String serials) throws ArtInjectException {
+        String packageName = cl.getOptionValue("package");
+        String injectSo = cl.getOptionValue("injectso");
+        String activityName = cl.getOptionValue("ac");
+        String breakPoints = cl.getOptionValue("breakOn");
+
+        List<String> serialList;
+        try {
+            serialList = artInjector.resolveSerials(serials, 30 * 1000);
+        } catch (ArtInjectException e) {
+            System.err.println("[Error] ErrorInfo: " + e.getMessage());
+            return -1;
+        }
+
+        if (cl.hasOption("a")) {
+            int exitCode = 0;
+            for (String serial : serialList) {
+                try {
+                    String appAbi = artInjector.getAppAbi(serial, packageName, 30 * 1000);
+                    System.out.println("[Success] Application abi of " + serial + " is : " + appAbi);
+                } catch (ArtInjectException e) {
+                    System.err.println("[Error] ErrorInfo: " + serial + ", " + e.getMessage());
+                    exitCode = -1;
+                }
+            }
+            return exitCode;
+        }
+
+        if (!cl.hasOption("i")) {
+            if (cl.hasOption("l")) {
+                return reportResults(artInjector.launchFleet(serialList, packageName, activityName, 10 * 1000));
+            }
+            return 0;
+        }
+        File[] soFiles = getInjectFiles(injectSo);
+        if (soFiles == null) {
+            return -1;
+        }
+        List<InjectResult> results = artInjector.injectFleet(serialList, packageName, soFiles, breakPoints, getInjectTimeout(cl));
+        return reportResults(results);
+    }
+
+    /**
+     * Run the job of the command line through the queue of the daemon, the jobs which do not inject
+     * run directly
+     *
+     * @param scheduler   queue of the daemon
+     * @param artInjector injector
+     * @param cl          command line
+     * @param args        arguments of the command line, the queued jobs are configured by them
+     * @return exit code, 0 only if all the devices succeeded
+     */
+    static int schedule(InjectScheduler scheduler, ArtInjector artInjector, CommandLine cl, String[] args) throws ArtInjectException {
+        if (!cl.hasOption("i") || cl.hasOption("a")) {
+            return run(artInjector, cl);
+        }
+        String packageName = cl.getOptionValue("package");
+        String serial = cl.getOptionValue("serial");
+        String breakPoints = cl.getOptionValue("breakOn");
+        int priority = Integer.parseInt(cl.getOptionValue("priority", "0"));
+
+        List<String> serialList;
+        if (serial != null && (serial.equals("all") || serial.contains(","))) {
+            try {
+                serialList = artInjector.resolveSerials(serial, 30 * 1000);
+            } catch (ArtInjectException e) {
+                System.err.println("[Error] ErrorInfo: " + e.getMessage());
+                return -1;
+            }
+        } else {
+            serialList = Collections.singletonList(serial);
+        }
+        File[] soFiles = getInjectFiles(cl.getOptionValue("injectso"));
+        if (soFiles == null) {
+            return -1;
+        }
+
+        List<InjectScheduler.Job> jobs = new ArrayList<>();
+        for (String s : serialList) {
+            jobs.add(scheduler.submit(new InjectScheduler.Job(s, packageName, soFiles, breakPoints, getInjectTimeout(cl), priority, args)));
+        }
+        List<InjectResult> results = new ArrayList<>();
+        for (InjectScheduler.Job job : jobs) {
+            results.add(job.getFuture().join());
+        }
+        return reportResults(results);
+    }
+
+    /**
+     * @return timeout of the injection of one device, the launch of the application counts against it
+     */
+    private static long getInjectTimeout(CommandLine cl) {
+        return cl.hasOption("l") ? (10 + 30) * 1000 : 30 * 1000;
+    }
+
+    /**
+     * @param injectSo files separated by `,`
+     * @return files, null if any file does not exist
+     */
+    private static File[] getInjectFiles(String injectSo) {
+        String[] soPaths = injectSo.split(",");
+        System.out.println(Arrays.toString(soPaths));
+        if (!Utils.checkSoPaths(soPaths)) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.SOFILE_NOT_EXIST);
+            return null;
+        }
+        File[] soFiles = new File[soPaths.length];
+        for (int i = 0; i < soFiles.length; i++) {
+            soFiles[i] = new File(soPaths[i]);
+        }
+        return soFiles;
+    }
+
+    private static int reportResults(List<InjectResult> results) {
+        System.out.println("[Success] Inject results:\n" + InjectResult.formatTable(results));
+        for (InjectResult result : results) {
+            if (!result.isSuccess()) {
+                return -1;
+            }
+        }
+        System.out.println("[Success] Inject: OK");
+        return 0;
     }
 }
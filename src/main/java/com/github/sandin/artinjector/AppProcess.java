@@ -0,0 +1,45 @@
+package com.github.sandin.artinjector;
+
+/**
+ * Debuggable process of an app
+ */
+public class AppProcess {
+    private final String mPackageName;
+    private final int mPid;
+    private final String mAbi;
+    private final int mDebuggerPort;
+
+    /**
+     * @param packageName  package name
+     * @param pid          pid
+     * @param abi          eg: 64-bit (arm64)
+     * @param debuggerPort local port of the JDWP connection, -1 if it has not been forwarded
+     */
+    public AppProcess(String packageName, int pid, String abi, int debuggerPort) {
+        mPackageName = packageName;
+        mPid = pid;
+        mAbi = abi;
+        mDebuggerPort = debuggerPort;
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public String getAbi() {
+        return mAbi;
+    }
+
+    public int getDebuggerPort() {
+        return mDebuggerPort;
+    }
+
+    @Override
+    public String toString() {
+        return "AppProcess{packageName=" + mPackageName + ", pid=" + mPid + ", abi=" + mAbi + "}";
+    }
+}
@@ -4,26 +4,49 @@ import com.sun.jdi.*;
 import com.sun.jdi.connect.AttachingConnector;
 import com.sun.jdi.connect.Connector;
 import com.sun.jdi.event.*;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
 import com.sun.jdi.request.EventRequest;
 import com.sun.jdi.request.EventRequestManager;
-import com.sun.jdi.request.MethodEntryRequest;
 
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Debugger for Android VM (art and dalvik)
  */
 public class ArtDebugger {
 
+    private static final EventHandler<com.sun.jdi.event.Event> NO_EVENT_HANDLER = event -> {
+    };
+
     private final List<Breakpoint> mBreakpoints = new ArrayList<>();
-    private final Map<EventRequest, Breakpoint> mEventRequestMap = new HashMap<>();
+    private final Map<EventRequest, Breakpoint> mEventRequestMap = new ConcurrentHashMap<>();
     private final List<EventListener> mEventListeners = new ArrayList<>();
     private VirtualMachine mVirtualMachine;
     private boolean mAttached = false;
     private Thread mEventMonitorThread = null;
     private volatile boolean mEventMonitorThreadRunning = false;
+    // key: event type, eg: BreakpointEvent.class
+    private final Map<Class<? extends com.sun.jdi.event.Event>, EventHandler<?>> mEventHandlers = new LinkedHashMap<>();
+    // key: implementation class of the event, resolved from mEventHandlers on first use
+    private final Map<Class<?>, EventHandler<?>> mResolvedEventHandlers = new ConcurrentHashMap<>();
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+    private Map<String, ThreadReference> mThreadsByName = null;
+    private volatile boolean mBreakpointsDisarmed = false;
+    // mirrors of this session, the remote objects are pinned (not garbage collected) until dispose
+    private final Map<String, ClassType> mClassTypes = new ConcurrentHashMap<>();
+    private final Map<ReferenceType, Map<String, Method>> mMethods = new ConcurrentHashMap<>(); // key: name + signature
+    private final Map<String, StringReference> mStrings = new ConcurrentHashMap<>();
+    private final Map<ReferenceType, ClassObjectReference> mClassObjects = new ConcurrentHashMap<>();
+    private final List<ObjectReference> mPinnedObjects = new ArrayList<>();
 
     public ArtDebugger() {
+        registerEventHandler(VMDeathEvent.class, event -> mEventMonitorThreadRunning = false);
+        registerEventHandler(VMDisconnectEvent.class, event -> mEventMonitorThreadRunning = false);
+        registerEventHandler(com.sun.jdi.event.BreakpointEvent.class, this::processBreakpointEventEvent);
+        registerEventHandler(ClassPrepareEvent.class, this::processClassPrepareEvent);
     }
 
     private static ClassType findClass(VirtualMachine vm, String className) {
@@ -89,7 +112,9 @@ public class ArtDebugger {
      */
     public void dispose() {
         stopEventMonitorThread(false);
+        System.out.println("[Success] event dispatch latency: " + mDispatchLatency);
         if (mVirtualMachine != null) {
+            releasePinnedObjects();
             mVirtualMachine.dispose();
         }
     }
@@ -109,15 +134,28 @@ public class ArtDebugger {
         return evaluateMethod(evaluateContext, cls, methodName, methodSignature, objectReference, args);
     }
 
+    /**
+     * Invoke a static method of a class in remote VM
+     *
+     * @param evaluateContext context(thread)
+     * @param cls             class type, eg: the reflected type of a class object
+     * @param methodName      method name
+     * @param args            method args
+     * @return result
+     */
+    public EvaluateResult evaluateStaticMethod(
+            EvaluateContext evaluateContext, ClassType cls, String methodName, String methodSignature, Object[] args) {
+        return evaluateMethod(evaluateContext, cls, methodName, methodSignature, null, args);
+    }
+
     public EvaluateResult evaluateStaticMethod(
             EvaluateContext evaluateContext, String className, String methodName, String methodSignature, Object[] args) {
         EvaluateResult result = new EvaluateResult();
-        ClassType cls = findClass(mVirtualMachine, className);
+        ClassType cls = getClassType(className);
         if (cls == null) {
             result.setError("Can not find class " + className);
             return result;
         }
-        System.out.println("[Success] Found class: " + cls.name() + ", " + cls.classLoader());
         return evaluateMethod(evaluateContext, cls, methodName, methodSignature, null, args);
     }
 
@@ -135,7 +173,7 @@ public class ArtDebugger {
         assertVirtualMachine();
         EvaluateResult result = new EvaluateResult();
 
-        Method method = cls.concreteMethodByName(methodName, methodSignature);
+        Method method = getMethod(cls, methodName, methodSignature);
         if (method == null) {
             result.setError("Can not find method, class=" + cls.name() + ", method=" + methodName + ", signature" + methodSignature );
             for (Method m : cls.methods()) {
@@ -143,24 +181,16 @@ public class ArtDebugger {
             }
             return result;
         }
-        System.out.println("[Success] Found method: class=" + method.declaringType().name() + " method=" + method.name() + " signature=" + method.signature());
 
         List<Value> methodArgs = new ArrayList<>();
         int options = ClassType.INVOKE_SINGLE_THREADED;
-        for (Object arg : args) {
-            if (arg instanceof String) {
-                methodArgs.add(mVirtualMachine.mirrorOf((String) arg));
-            } else if (arg instanceof Boolean) {
-                methodArgs.add(mVirtualMachine.mirrorOf((Boolean) arg));
-            } else if (arg instanceof Value) {
-                methodArgs.add((Value) arg);
-            } else if (arg == null) {
-                methodArgs.add(null);
-                // TODO:
-            } else {
-                throw new IllegalArgumentException(
-                        "unsupported args type: " + arg); // TODO: support other primitive type
+        try {
+            for (Object arg : args) {
+                methodArgs.add(toValue(arg));
             }
+        } catch (ClassNotLoadedException | InvalidTypeException e) {
+            result.setError("Can not create argument in remote VM, error=" + e);
+            return result;
         }
         System.out.println(
                 "[Success] try to invoke method: className="
@@ -189,6 +219,10 @@ public class ArtDebugger {
                 invokeResult = cls.invokeMethod(thread, method, methodArgs, options);
                 result.setResult(invokeResult);
             }
+            if (invokeResult instanceof ObjectReference) {
+                // the result is only referenced by the debugger, keep it alive for the next invocations
+                pin((ObjectReference) invokeResult);
+            }
             System.out.println(
                     "[Success] invoke method result: " + result + ", t=" + System.currentTimeMillis());
         } catch (InvocationException e) {
@@ -213,6 +247,184 @@ public class ArtDebugger {
         return result;
     }
 
+    /**
+     * Find a loaded class, the result is cached for this session
+     *
+     * @param className class name, eg: java.lang.String
+     * @return class, null if it is not loaded
+     */
+    public ClassType getClassType(String className) {
+        assertVirtualMachine();
+        ClassType cls = mClassTypes.get(className);
+        if (cls == null) {
+            cls = findClass(mVirtualMachine, className);
+            if (cls != null) {
+                System.out.println("[Success] Found class: " + cls.name() + ", " + cls.classLoader());
+                mClassTypes.put(className, cls);
+            }
+        }
+        return cls;
+    }
+
+    /**
+     * Get the `java.lang.Class` object of a loaded class without any invocation in the remote VM
+     *
+     * @param className class name, eg: java.lang.ClassLoader
+     * @return pinned class object, null if the class is not loaded
+     */
+    public ClassObjectReference getClassObject(String className) {
+        ClassType cls = getClassType(className);
+        if (cls == null) {
+            return null;
+        }
+        return mClassObjects.computeIfAbsent(cls, type -> pin(type.classObject()));
+    }
+
+    private Method getMethod(ClassType cls, String methodName, String methodSignature) {
+        Map<String, Method> methods = mMethods.computeIfAbsent(cls, type -> new ConcurrentHashMap<>());
+        String key = methodName + methodSignature;
+        Method method = methods.get(key);
+        if (method == null) {
+            method = cls.concreteMethodByName(methodName, methodSignature);
+            if (method != null) {
+                System.out.println("[Success] Found method: class=" + method.declaringType().name() + " method=" + method.name() + " signature=" + method.signature());
+                methods.put(key, method);
+            }
+        }
+        return method;
+    }
+
+    /**
+     * Mirror an argument in remote VM
+     *
+     * @param arg String, boxed primitive, primitive array, eg: byte[] or int[], {@link Value} or null
+     * @return mirror
+     */
+    private Value toValue(Object arg) throws ClassNotLoadedException, InvalidTypeException {
+        if (arg == null || arg instanceof Value) {
+            return (Value) arg;
+        } else if (arg instanceof String) {
+            return mirrorOf((String) arg);
+        } else if (arg instanceof Boolean) {
+            return mVirtualMachine.mirrorOf((Boolean) arg);
+        } else if (arg instanceof Byte) {
+            return mVirtualMachine.mirrorOf((Byte) arg);
+        } else if (arg instanceof Character) {
+            return mVirtualMachine.mirrorOf((Character) arg);
+        } else if (arg instanceof Short) {
+            return mVirtualMachine.mirrorOf((Short) arg);
+        } else if (arg instanceof Integer) {
+            return mVirtualMachine.mirrorOf((Integer) arg);
+        } else if (arg instanceof Long) {
+            return mVirtualMachine.mirrorOf((Long) arg);
+        } else if (arg instanceof Float) {
+            return mVirtualMachine.mirrorOf((Float) arg);
+        } else if (arg instanceof Double) {
+            return mVirtualMachine.mirrorOf((Double) arg);
+        } else if (arg.getClass().isArray() && arg.getClass().getComponentType().isPrimitive()) {
+            int length = Array.getLength(arg);
+            ArrayReference array = newArray(arg.getClass().getComponentType().getName() + "[]", length);
+            List<Value> values = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                values.add(toValue(Array.get(arg, i)));
+            }
+            array.setValues(0, values, 0, length);
+            return array;
+        }
+        throw new IllegalArgumentException("unsupported args type: " + arg);
+    }
+
+    /**
+     * Create a byte array in remote VM
+     *
+     * @param length length of the array
+     * @return pinned array, see {@link #release(ObjectReference)}
+     */
+    public ArrayReference newByteArray(int length) throws ClassNotLoadedException {
+        return newArray("byte[]", length);
+    }
+
+    /**
+     * @param typeName name of the array type, eg: int[]
+     */
+    private ArrayReference newArray(String typeName, int length) throws ClassNotLoadedException {
+        assertVirtualMachine();
+        List<ReferenceType> types = mVirtualMachine.classesByName(typeName);
+        if (types.isEmpty()) {
+            throw new ClassNotLoadedException(typeName);
+        }
+        return pin(((ArrayType) types.get(0)).newInstance(length));
+    }
+
+    /**
+     * Copy bytes into the head of a remote byte array, the bytes are sent in one JDWP command
+     *
+     * @param array  remote byte array
+     * @param data   bytes
+     * @param offset offset in data
+     * @param length number of bytes
+     */
+    public void setBytes(ArrayReference array, byte[] data, int offset, int length)
+            throws ClassNotLoadedException, InvalidTypeException {
+        List<Value> values = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            values.add(mVirtualMachine.mirrorOf(data[offset + i]));
+        }
+        array.setValues(0, values, 0, length);
+    }
+
+    /**
+     * Create a string in remote VM, unlike the string arguments it is not cached for this session
+     *
+     * @param value string
+     * @return pinned string, see {@link #release(ObjectReference)}
+     */
+    public StringReference newString(String value) {
+        assertVirtualMachine();
+        return pin(mVirtualMachine.mirrorOf(value));
+    }
+
+    /**
+     * Let remote VM collect an object which is pinned by this session
+     *
+     * @param object pinned object, eg: the result of an invocation
+     */
+    public void release(ObjectReference object) {
+        synchronized (mPinnedObjects) {
+            mPinnedObjects.remove(object);
+        }
+        try {
+            object.enableCollection();
+        } catch (ObjectCollectedException | VMDisconnectedException ignore) {
+        }
+    }
+
+    private StringReference mirrorOf(String value) {
+        return mStrings.computeIfAbsent(value, v -> pin(mVirtualMachine.mirrorOf(v)));
+    }
+
+    private <T extends ObjectReference> T pin(T object) {
+        object.disableCollection();
+        synchronized (mPinnedObjects) {
+            mPinnedObjects.add(object);
+        }
+        return object;
+    }
+
+    private void releasePinnedObjects() {
+        synchronized (mPinnedObjects) {
+            for (ObjectReference object : mPinnedObjects) {
+                try {
+                    object.enableCollection();
+                } catch (ObjectCollectedException | VMDisconnectedException ignore) {
+                }
+            }
+            mPinnedObjects.clear();
+        }
+        mStrings.clear();
+        mClassObjects.clear();
+    }
+
     private ArtInjectException parseRemoteException(ThreadReference threadRef, ObjectReference remoteExceptionRef) {
         String message = "";
 
@@ -234,6 +446,35 @@ public class ArtDebugger {
         return new ArtInjectException(message);
     }
 
+    /**
+     * Handler of a type of JDI events
+     */
+    private interface EventHandler<T extends com.sun.jdi.event.Event> {
+        void handle(T event);
+    }
+
+    private <T extends com.sun.jdi.event.Event> void registerEventHandler(Class<T> type, EventHandler<T> handler) {
+        mEventHandlers.put(type, handler);
+        mResolvedEventHandlers.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatchEvent(com.sun.jdi.event.Event event) {
+        EventHandler<com.sun.jdi.event.Event> handler = (EventHandler<com.sun.jdi.event.Event>) mResolvedEventHandlers
+                .computeIfAbsent(event.getClass(), cls -> {
+                    for (Map.Entry<Class<? extends com.sun.jdi.event.Event>, EventHandler<?>> entry : mEventHandlers.entrySet()) {
+                        if (entry.getKey().isAssignableFrom(cls)) {
+                            return entry.getValue();
+                        }
+                    }
+                    return NO_EVENT_HANDLER;
+                });
+        handler.handle(event);
+    }
+
+    /**
+     * The thread blocks on the event queue, each event set is dispatched and then resumed once
+     */
     private void startEventMonitorThread() {
         System.out.println("[Success] start event monitor thread");
         mEventMonitorThreadRunning = true;
@@ -242,36 +483,30 @@ public class ArtDebugger {
                         () -> {
                             assertVirtualMachine();
                             EventQueue eventQueue = mVirtualMachine.eventQueue();
-                            boolean vmExit = false;
 
-                            while (mEventMonitorThreadRunning && !vmExit) {
+                            while (mEventMonitorThreadRunning) {
+                                EventSet eventSet;
+                                try {
+                                    eventSet = eventQueue.remove();
+                                } catch (InterruptedException | VMDisconnectedException e) {
+                                    break;
+                                }
+                                long startTime = System.nanoTime();
                                 try {
-                                    EventSet eventSet = eventQueue.remove();
                                     EventIterator eventIterator = eventSet.eventIterator();
                                     while (eventIterator.hasNext()) {
-                                        com.sun.jdi.event.Event event =
-                                                eventIterator.nextEvent();
-                                        if (event instanceof VMDeathEvent) {
-                                            vmExit = true;
-                                        } else if (event instanceof VMDisconnectEvent) {
-                                            vmExit = true;
-                                        } else if (event instanceof MethodEntryEvent) {
-                                            processMethodEntryEvent((MethodEntryEvent) event);
-                                        } else if (event
-                                                instanceof com.sun.jdi.event.BreakpointEvent) {
-                                            processBreakpointEventEvent(
-                                                    (com.sun.jdi.event.BreakpointEvent) event);
-                                        }
-                                        eventSet.resume();
+                                        dispatchEvent(eventIterator.nextEvent());
                                     }
                                 } catch (Throwable e) {
                                     e.printStackTrace();
-                                }
-
-                                try {
-                                    Thread.sleep(100);
-                                } catch (InterruptedException ignore) {
-
+                                } finally {
+                                    mDispatchLatency.record(System.nanoTime() - startTime);
+                                    if (mEventMonitorThreadRunning) {
+                                        try {
+                                            eventSet.resume();
+                                        } catch (VMDisconnectedException ignore) {
+                                        }
+                                    }
                                 }
                             }
                             System.out.println("[Success] event monitor thread exit");
@@ -279,29 +514,41 @@ public class ArtDebugger {
         mEventMonitorThread.start();
     }
 
-    private void processMethodEntryEvent(MethodEntryEvent event) {
-        //System.out.println("[✔] on method entry event " + event + ", method=" + event.method());
-        EvaluateContext ctx = new EvaluateContext(event.thread(), event.method());
-
-        EventRequest eventRequest = event.request();
-        if (mEventRequestMap.containsKey(eventRequest)) {
-            MethodBreakpoint breakpoint = (MethodBreakpoint) mEventRequestMap.get(eventRequest);
-            Method method = event.method();
-            if (method.name().equals(breakpoint.getMethodName())) {
-                BreakpointEvent breakpointEvent = new BreakpointEvent(ctx, breakpoint);
-                notifyEventListeners(breakpointEvent);
-            }
+    private void processBreakpointEventEvent(com.sun.jdi.event.BreakpointEvent event) {
+        if (mBreakpointsDisarmed) {
+            return; // queued before the breakpoints were disarmed
+        }
+        // the request may hit before addBreakpoint() maps it, the breakpoint is a property of the request
+        Breakpoint breakpoint = (Breakpoint) event.request().getProperty(Breakpoint.class);
+        if (breakpoint instanceof MethodBreakpoint) {
+            EvaluateContext ctx = new EvaluateContext(event.thread(), event.location().method());
+            notifyEventListeners(new BreakpointEvent(ctx, (MethodBreakpoint) breakpoint));
         }
     }
 
-    private void processBreakpointEventEvent(com.sun.jdi.event.BreakpointEvent event) {
-        // TODO:
+    /**
+     * Arm the deferred breakpoint of the class, the thread which prepares the class is suspended
+     * until the breakpoint is set, so no call of the method is missed
+     */
+    private synchronized void processClassPrepareEvent(ClassPrepareEvent event) {
+        if (mBreakpointsDisarmed) {
+            return; // queued before the breakpoints were disarmed
+        }
+        Breakpoint breakpoint = (Breakpoint) event.request().getProperty(Breakpoint.class);
+        if (breakpoint instanceof MethodBreakpoint
+                && ((MethodBreakpoint) breakpoint).arm(mVirtualMachine, event.referenceType())) {
+            for (EventRequest eventRequest : breakpoint.getEventRequests()) {
+                mEventRequestMap.put(eventRequest, breakpoint);
+            }
+            System.out.println("[Success] armed deferred breakpoint: " + breakpoint);
+        }
     }
 
     private void stopEventMonitorThread(boolean waitForStop) {
         System.out.println("[Success] stop event monitor thread");
         mEventMonitorThreadRunning = false;
         if (mEventMonitorThread != null) {
+            mEventMonitorThread.interrupt();
             if (waitForStop) {
                 try {
                     mEventMonitorThread.join();
@@ -325,8 +572,18 @@ public class ArtDebugger {
      */
     public boolean addBreakpoint(Breakpoint breakpoint) {
         assertVirtualMachine();
+        if (breakpoint.getThreadName() != null && breakpoint.getThread() == null) {
+            ThreadReference thread = findThread(breakpoint.getThreadName());
+            if (thread == null) {
+                System.out.println("[Warning] can not find thread " + breakpoint.getThreadName() + ", breakpoint hits on all threads: " + breakpoint);
+            }
+            breakpoint.setThread(thread);
+        }
+        mBreakpointsDisarmed = false;
         if (breakpoint.enable(mVirtualMachine)) {
-            mEventRequestMap.put(breakpoint.getEventRequest(), breakpoint);
+            for (EventRequest eventRequest : breakpoint.getEventRequests()) {
+                mEventRequestMap.put(eventRequest, breakpoint);
+            }
             mBreakpoints.add(breakpoint);
             return true;
         }
@@ -340,9 +597,10 @@ public class ArtDebugger {
      */
     public void removeBreakpoint(Breakpoint breakpoint) {
         assertVirtualMachine();
+        for (EventRequest eventRequest : breakpoint.getEventRequests()) {
+            mEventRequestMap.remove(eventRequest);
+        }
         breakpoint.disable(mVirtualMachine);
-
-        mEventRequestMap.remove(breakpoint.getEventRequest());
         mBreakpoints.remove(breakpoint);
     }
 
@@ -358,6 +616,38 @@ public class ArtDebugger {
             breakpoint.disable(mVirtualMachine);
             it.remove();
         }
+        mEventRequestMap.clear();
+    }
+
+    /**
+     * Disable all breakpoints at once, usually on the first accepted hit, so the target is not
+     * suspended by any further hit. The hits which are already queued are dropped.
+     */
+    public synchronized void disarmBreakpoints() {
+        assertVirtualMachine();
+        mBreakpointsDisarmed = true;
+        int count = mEventRequestMap.size();
+        for (Breakpoint breakpoint : mBreakpoints) {
+            breakpoint.disable(mVirtualMachine);
+        }
+        mEventRequestMap.clear();
+        System.out.println("[Success] disarmed " + count + " breakpoint requests");
+    }
+
+    /**
+     * Find a thread by name, the threads are listed only once
+     *
+     * @param name thread name, eg: main
+     * @return thread, null if not found
+     */
+    private synchronized ThreadReference findThread(String name) {
+        if (mThreadsByName == null) {
+            mThreadsByName = new HashMap<>();
+            for (ThreadReference thread : mVirtualMachine.allThreads()) {
+                mThreadsByName.putIfAbsent(thread.name(), thread);
+            }
+        }
+        return mThreadsByName.get(name);
     }
 
     /**
@@ -369,6 +659,14 @@ public class ArtDebugger {
         return mBreakpoints;
     }
 
+    /**
+     * @return time from taking an event set off the queue to resuming it, the target threads are
+     * suspended during this time
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
     /**
      * Register Debug Event Listener
      *
@@ -417,6 +715,9 @@ public class ArtDebugger {
 
         protected boolean mEnabled;
         protected int mSuspendPolicy;
+        protected String mThreadName;
+        protected ThreadReference mThread;
+        protected int mCount;
 
         public boolean isEnabled() {
             return mEnabled;
@@ -434,16 +735,54 @@ public class ArtDebugger {
             mSuspendPolicy = suspendPolicy;
         }
 
+        /**
+         * @return name of the only thread which hits the breakpoint, null for all threads
+         */
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        public void setThreadName(String threadName) {
+            mThreadName = threadName;
+        }
+
+        public ThreadReference getThread() {
+            return mThread;
+        }
+
+        /**
+         * Set the thread filter, the threads are filtered in the target VM
+         */
+        public void setThread(ThreadReference thread) {
+            mThread = thread;
+        }
+
+        /**
+         * @return the breakpoint hits only on the count-th time and then expires, 0 for every time
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        public void setCount(int count) {
+            mCount = count;
+        }
+
         public abstract boolean enable(VirtualMachine vm);
 
         public abstract boolean disable(VirtualMachine vm);
 
-        public abstract EventRequest getEventRequest();
+        /**
+         * @return the event requests of the enabled breakpoint
+         */
+        public abstract List<EventRequest> getEventRequests();
 
         public static class Builder {
             public String className;
             public String methodName;
             public int suspendPolicy = EventRequest.SUSPEND_EVENT_THREAD;
+            public String threadName;
+            public int count = 0;
 
             public Builder className(String className) {
                 this.className = className;
@@ -460,6 +799,16 @@ public class ArtDebugger {
                 return this;
             }
 
+            public Builder threadName(String threadName) {
+                this.threadName = threadName;
+                return this;
+            }
+
+            public Builder count(int count) {
+                this.count = count;
+                return this;
+            }
+
             public Breakpoint build() {
                 Breakpoint breakpoint = null;
                 if (className != null && methodName != null) {
@@ -470,19 +819,28 @@ public class ArtDebugger {
                 }
 
                 breakpoint.setSuspendPolicy(suspendPolicy);
+                breakpoint.setThreadName(threadName);
+                breakpoint.setCount(count);
                 return breakpoint;
             }
         }
     }
 
     /**
-     * Breakpoint for method
+     * Breakpoint for method, a breakpoint is set at the first location of each overload of the
+     * method, so only the calls of the method suspend the target thread
+     * <p>
+     * If the class is not loaded yet, the breakpoint is deferred: it is armed as soon as the class
+     * is prepared.
      */
     public static class MethodBreakpoint extends Breakpoint {
         private final String mClassName;
         private final String mMethodName;
 
-        private MethodEntryRequest mMethodEntryRequest = null;
+        private final List<EventRequest> mBreakpointRequests = new ArrayList<>();
+        private final Set<ReferenceType> mArmedClasses = new HashSet<>();
+        private ClassPrepareRequest mClassPrepareRequest = null;
+        private boolean mDisabled = false; // a disabled breakpoint is not armed by a late class prepare event
 
         public MethodBreakpoint(String className, String methodName) {
             super();
@@ -498,36 +856,89 @@ public class ArtDebugger {
             return mMethodName;
         }
 
-        public boolean enable(VirtualMachine vm) {
-            if (mMethodEntryRequest == null) {
-                EventRequestManager eventRequestMgr = vm.eventRequestManager();
+        public synchronized boolean enable(VirtualMachine vm) {
+            if (!mBreakpointRequests.isEmpty() || mClassPrepareRequest != null) {
+                return true;
+            }
+            mDisabled = false;
 
-                ClassType clsType = findClass(vm, mClassName);
-                if (clsType == null) {
-                    System.err.println("Can not find " + mClassName + " class");
+            ClassType clsType = findClass(vm, mClassName);
+            if (clsType != null && clsType.isPrepared()) {
+                if (!arm(vm, clsType)) {
+                    System.err.println("Can not find method " + mClassName + "." + mMethodName + " which has code");
                     return false;
                 }
+                return true;
+            }
 
-                mMethodEntryRequest = eventRequestMgr.createMethodEntryRequest();
-                mMethodEntryRequest.addClassFilter(clsType);
-                mMethodEntryRequest.setSuspendPolicy(mSuspendPolicy);
-                mMethodEntryRequest.enable();
+            mClassPrepareRequest = vm.eventRequestManager().createClassPrepareRequest();
+            mClassPrepareRequest.addClassFilter(mClassName);
+            mClassPrepareRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+            mClassPrepareRequest.putProperty(Breakpoint.class, this);
+            mClassPrepareRequest.enable();
+            System.out.println("[Warning] class " + mClassName + " is not loaded yet, the breakpoint is armed when the class is prepared");
+
+            // the class may be prepared before the request is enabled
+            clsType = findClass(vm, mClassName);
+            if (clsType != null && clsType.isPrepared()) {
+                arm(vm, clsType);
             }
             return true;
         }
 
-        public boolean disable(VirtualMachine vm) {
-            if (mMethodEntryRequest != null) {
-                mMethodEntryRequest.disable();
-                vm.eventRequestManager().deleteEventRequest(mMethodEntryRequest);
-                mMethodEntryRequest = null;
+        /**
+         * Set the breakpoints in a prepared class
+         *
+         * @param vm   vm
+         * @param type the class
+         * @return true if any breakpoint is set, false if the breakpoint is disabled
+         */
+        synchronized boolean arm(VirtualMachine vm, ReferenceType type) {
+            if (mDisabled || !mArmedClasses.add(type)) {
+                return false;
             }
+            EventRequestManager eventRequestMgr = vm.eventRequestManager();
+            boolean armed = false;
+            for (Method method : type.methodsByName(mMethodName)) {
+                Location location = method.location();
+                if (method.isAbstract() || method.isNative() || location == null) {
+                    continue;
+                }
+                BreakpointRequest request = eventRequestMgr.createBreakpointRequest(location);
+                request.setSuspendPolicy(mSuspendPolicy);
+                if (mThread != null) {
+                    request.addThreadFilter(mThread);
+                }
+                if (mCount > 0) {
+                    request.addCountFilter(mCount);
+                }
+                request.putProperty(Breakpoint.class, this);
+                request.enable();
+                mBreakpointRequests.add(request);
+                armed = true;
+            }
+            return armed;
+        }
+
+        public synchronized boolean disable(VirtualMachine vm) {
+            for (EventRequest request : getEventRequests()) {
+                request.disable();
+                vm.eventRequestManager().deleteEventRequest(request);
+            }
+            mBreakpointRequests.clear();
+            mArmedClasses.clear();
+            mClassPrepareRequest = null;
+            mDisabled = true;
             return true;
         }
 
         @Override
-        public EventRequest getEventRequest() {
-            return mMethodEntryRequest;
+        public synchronized List<EventRequest> getEventRequests() {
+            List<EventRequest> requests = new ArrayList<>(mBreakpointRequests);
+            if (mClassPrepareRequest != null) {
+                requests.add(mClassPrepareRequest);
+            }
+            return requests;
         }
 
         @Override
@@ -1,12 +1,30 @@
 package com.github.sandin.artinjector;
 
 public class ArtInjectException extends Exception {
+    private final Integer mErrorCode;
 
     public ArtInjectException(String message) {
-        super(message);
+        this(null, message);
     }
 
     public ArtInjectException(String message, Throwable cause) {
+        this(null, message, cause);
+    }
+
+    public ArtInjectException(Integer errorCode, String message) {
+        super(message);
+        mErrorCode = errorCode;
+    }
+
+    public ArtInjectException(Integer errorCode, String message, Throwable cause) {
         super(message, cause);
+        mErrorCode = errorCode;
+    }
+
+    /**
+     * @return one of {@link ErrorCodes}, null if unknown
+     */
+    public Integer getErrorCode() {
+        return mErrorCode;
     }
 }
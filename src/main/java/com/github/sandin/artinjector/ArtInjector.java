@@ -5,15 +5,28 @@ import com.google.common.collect.ImmutableMap;
 import com.sun.jdi.*;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 /**
  * Android VM Injector
@@ -26,18 +39,54 @@ public class ArtInjector {
      * import android.util.Log;
      *
      * public class EntryPoint {
-     *     public static void entry(ClassLoader dexClassLoader, ClassLoader originClassLoader) {
+     *     public static void entry(Application application, ClassLoader dexClassLoader, ClassLoader originClassLoader) {
      *          Log.i("ArtInjector", "entry, dexClassLoader=" + dexClassLoader + ", originClassLoader=" + originClassLoader);
      *     }
      * }
      * </code>
+     * The entry of a resident agent takes a fourth argument, the token of its requests, see {@link AgentClient}
+     * and `agent/` for the agent apk.
      */
     private final static String INJECT_APK_ENTRY_CLASS_NAME = "com.github.sandin.artinjector.EntryPoint";
     private final static String INJECT_APK_ENTRY_METHOD_NAME = "entry";
-    private final static String INJECT_APK_ENTRY_METHOD_SIGNATURE= "(Ljava/lang/ClassLoader;Ljava/lang/ClassLoader;)V";
+    private final static String INJECT_APK_ENTRY_METHOD_ARGUMENTS = "(Landroid/app/Application;Ljava/lang/ClassLoader;Ljava/lang/ClassLoader;)"; // any return type
+    private final static String INJECT_APK_AGENT_ENTRY_METHOD_ARGUMENTS = "(Landroid/app/Application;Ljava/lang/ClassLoader;Ljava/lang/ClassLoader;Ljava/lang/String;)";
+    // the `apk!/lib/<abi>` library search path is supported since Android 6.0
+    private final static int LOAD_LIBRARIES_FROM_APK_MIN_SDK = 23;
+    // timeout of every request to the resident agent, eg: a System.load
+    private final static int AGENT_TIMEOUT = 10000;
+    // max milliseconds to wait beyond the deadline for the loads of an accepted breakpoint hit
+    private final static int LOAD_GRACE_TIMEOUT = 30 * 1000;
+    // timeout of the connection of ddmlib to the adb server, if the caller has no deadline
+    private final static int ADB_CONNECT_TIMEOUT = 30 * 1000;
+
+    /**
+     * Implementation of the adb operations
+     */
+    public enum Backend {
+        /**
+         * ddmlib, the JDWP connections are forwarded by the client monitor of ddmlib
+         */
+        DDMLIB,
+        /**
+         * built-in adb client, no monitor threads and no per-client handshakes
+         */
+        BUILTIN
+    }
 
     private final String mAdbPath;
+    private Backend mBackend = Backend.DDMLIB;
     private AndroidDebugBridge mAndroidDebugBridge = null;
+    private int mPushParallelism = 1;
+    private boolean mStreamingPush = true;
+    private boolean mDeltaPush = false;
+    private TransferCompressor.Mode mCompression = TransferCompressor.Mode.AUTO;
+    private ExtractionCache mExtractionCache = new ExtractionCache(ExtractionCache.getDefaultCacheDir(), ExtractionCache.DEFAULT_MAX_SIZE);
+    private boolean mLoadLibrariesFromApk = true;
+    private boolean mExitOnTimeout = true;
+    private String mAgentSocketName = null;
+    private boolean mLaunch = false;
+    private String mLaunchActivityName = null;
 
     public ArtInjector(String adbPath) {
         mAdbPath = adbPath;
@@ -47,39 +96,153 @@ public class ArtInjector {
         mAdbPath = null;
     }
 
-    private static String adbShell(IDevice device, String[] command, boolean asRoot) {
-        CountDownLatch latch = new CountDownLatch(1);
-        CollectingOutputReceiver receiver = new CollectingOutputReceiver(latch);
-        try {
-            String cmd;
-            if (asRoot) {
-                cmd = "su -c \"" + String.join(" ", command) + "\"";
-            } else {
-                cmd = String.join(" ", command);
-            }
-            System.out.println("[Success] adb shell " + cmd);
-            device.executeShellCommand(cmd, receiver, 2L, TimeUnit.SECONDS);
-        } catch (Exception var6) {
+    /**
+     * Set the max number of parallel sync sessions used to push files
+     *
+     * @param parallelism number of sync sessions
+     */
+    public void setPushParallelism(int parallelism) {
+        mPushParallelism = parallelism;
+    }
+
+    /**
+     * Enable/disable streaming the files straight into the app data dir
+     *
+     * @param streaming streaming push or push via /data/local/tmp
+     */
+    public void setStreamingPush(boolean streaming) {
+        mStreamingPush = streaming;
+    }
+
+    /**
+     * Enable/disable sending only the changed blocks of the large files which already have a remote copy
+     *
+     * @param delta delta push
+     */
+    public void setDeltaPush(boolean delta) {
+        mDeltaPush = delta;
+    }
+
+    /**
+     * Set the compression mode of the bytes on the wire
+     *
+     * @param compression auto: decided by payload size and link throughput
+     */
+    public void setCompression(TransferCompressor.Mode compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Set the persistent cache of the library files extracted from apk files
+     *
+     * @param extractionCache cache, null for streaming the library files from the apk every time
+     */
+    public void setExtractionCache(ExtractionCache extractionCache) {
+        mExtractionCache = extractionCache;
+    }
+
+    /**
+     * Enable/disable loading the library files straight from the apk when they are stored and page aligned
+     *
+     * @param loadLibrariesFromApk load in place or always extract the library files
+     */
+    public void setLoadLibrariesFromApk(boolean loadLibrariesFromApk) {
+        mLoadLibrariesFromApk = loadLibrariesFromApk;
+    }
+
+    /**
+     * Enable/disable exiting the process when an injection times out, a long-running process must disable it
+     *
+     * @param exitOnTimeout call System.exit on timeout
+     */
+    public void setExitOnTimeout(boolean exitOnTimeout) {
+        mExitOnTimeout = exitOnTimeout;
+    }
+
+    /**
+     * Load the files through the resident agent of the app if it is running, see {@link AgentClient}.
+     * The injection falls back to the JDWP debugger when the agent can not be connected
+     *
+     * @param socketName abstract socket name of the agent, empty for the default name, null to disable
+     */
+    public void setAgentSocketName(String socketName) {
+        mAgentSocketName = socketName;
+    }
+
+    /**
+     * Enable/disable launching the application in the worker of each device before the injection,
+     * the launch counts against the deadline of the device
+     *
+     * @param launch       launch the application
+     * @param activityName activity to start, null for the launcher activity
+     */
+    public void setLaunch(boolean launch, String activityName) {
+        mLaunch = launch;
+        mLaunchActivityName = activityName;
+    }
+
+    /**
+     * Share an adb bridge which is already connected, eg: the bridge of the daemon
+     *
+     * @param androidDebugBridge connected bridge
+     */
+    public void setAndroidDebugBridge(AndroidDebugBridge androidDebugBridge) {
+        mAndroidDebugBridge = androidDebugBridge;
+    }
+
+    /**
+     * Connect to the adb server
+     *
+     * @return connected bridge, null for the built-in adb client, which connects on each request
+     */
+    public AndroidDebugBridge connect() throws ArtInjectException {
+        if (mBackend == Backend.BUILTIN) {
             return null;
         }
+        ensureAndroidDebugBridge(Deadline.after(ADB_CONNECT_TIMEOUT));
+        return mAndroidDebugBridge;
+    }
 
-        try {
-            latch.await(2L, TimeUnit.SECONDS);
-        } catch (InterruptedException var5) {
-            return null;
+    /**
+     * Select the implementation of the adb operations
+     *
+     * @param backend ddmlib or the built-in adb client
+     */
+    public void setBackend(Backend backend) {
+        mBackend = backend;
+    }
+
+    public Backend getBackend() {
+        return mBackend;
+    }
+
+    static String adbShell(AdbDevice device, String[] command, boolean asRoot, long timeoutSeconds) {
+        String cmd;
+        if (asRoot) {
+            cmd = "su -c \"" + String.join(" ", command) + "\"";
+        } else {
+            cmd = String.join(" ", command);
         }
+        System.out.println("[Success] adb shell " + cmd);
+        String out = device.executeShellCommand(cmd, timeoutSeconds);
+        return out != null ? out.trim() : null;
+    }
 
-        return receiver.getOutput().trim();
+    private static String adbShell(AdbDevice device, String[] command, boolean asRoot) {
+        return adbShell(device, command, asRoot, 2L);
     }
 
-    private static String adbShell(IDevice device, String[] command) {
+    private static String adbShell(AdbDevice device, String[] command) {
         return adbShell(device, command, false);
     }
 
     //Launch Application
     public void launchApplication(String serial, String packageName, String activityName, long timeout) throws ArtInjectException {
+        launchApplication(serial, packageName, activityName, Deadline.after(timeout));
+    }
 
-        IDevice device = getDevice(serial, timeout);
+    private void launchApplication(String serial, String packageName, String activityName, Deadline deadline) throws ArtInjectException {
+        AdbDevice device = getAdbDevice(serial, deadline);
 
         String[] launchAppCommand = new String[]{
                 "am set-debug-app -w " + packageName
@@ -102,88 +265,442 @@ public class ArtInjector {
     }
 
     public IDevice getDevice(String serial, Long timeout) throws ArtInjectException {
-        ensureAndroidDebugBridge();
+        return getDevice(serial, Deadline.after(timeout));
+    }
+
+    public IDevice getDevice(String serial, Deadline deadline) throws ArtInjectException {
+        ensureAndroidDebugBridge(deadline);
 
         // Find device and client
-        IDevice device = findDevice(serial, timeout);
+        IDevice device = findDevice(serial, deadline);
+        if (device == null) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_FIND_DEVICE);
+            throw new ArtInjectException(ErrorCodes.CANT_FIND_DEVICE, "Can not find device, serial=" + serial);
+        }
+        System.out.println("[Success] found device, serial=" + device.getSerialNumber());
+        return device;
+    }
+
+    private AdbDevice getAdbDevice(String serial, Deadline deadline) throws ArtInjectException {
+        if (mBackend == Backend.DDMLIB) {
+            return new DdmlibDevice(getDevice(serial, deadline));
+        }
+
+        AdbDevice device;
+        try {
+            device = AdbClientDevice.find(serial, deadline);
+        } catch (IOException e) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_ADB);
+            throw new ArtInjectException(ErrorCodes.CANT_GET_ADB, "Can not connect to adb server: " + AdbConnection.getServerAddress(), e);
+        }
         if (device == null) {
             System.out.println("[ErrorCode]: " + ErrorCodes.CANT_FIND_DEVICE);
-            throw new ArtInjectException("Can not find device, serial=" + serial);
+            throw new ArtInjectException(ErrorCodes.CANT_FIND_DEVICE, "Can not find device, serial=" + serial);
         }
         System.out.println("[Success] found device, serial=" + device.getSerialNumber());
         return device;
     }
 
+    private AppProcess getAppProcess(AdbDevice device, String packageName, Deadline deadline) throws ArtInjectException {
+        AppProcess app = device.findApp(packageName, deadline);
+        if (app == null) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_CLIENT);
+            throw new ArtInjectException(ErrorCodes.CANT_GET_CLIENT,
+                    "Can not get client, make sure this application is debuggable and is running, packageName="
+                            + packageName);
+        }
+        return app;
+    }
+
     /**
-     * Inject a so file into target application
+     * Inject a so file into target application, the process exits on timeout unless
+     * {@link #setExitOnTimeout(boolean)} is disabled, a host process should use {@link #injectAsync}
      *
      * @param serial      device's serial, null for first device
      * @param packageName package name of application
      * @param soFiles     so files
-     * @param timeout     wait timeout
+     * @param timeout     timeout of the whole injection
      * @throws ArtInjectException
      */
     public boolean inject(String serial, String packageName, File[] soFiles, String breakPoints, long timeout)
             throws ArtInjectException {
         long startTime = System.currentTimeMillis();
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                long nowTime = System.currentTimeMillis();
-                if (nowTime - startTime > timeout) {
-                    System.out.println("[ErrorCode]: " + ErrorCodes.INJECT_TIMEOUT);
-                    System.out.println("[ErrorInfo] : timeout!");
-                    System.exit(-1);
+        Timer timer = new Timer(true);
+        if (mExitOnTimeout) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    long nowTime = System.currentTimeMillis();
+                    if (nowTime - startTime > timeout) {
+                        System.out.println("[ErrorCode]: " + ErrorCodes.INJECT_TIMEOUT);
+                        System.out.println("[ErrorInfo] : timeout!");
+                        System.exit(-1);
+                    }
+                }
+            }, 0, 1000);
+        }
+        try {
+            return doInject(serial, packageName, soFiles, breakPoints, Deadline.after(timeout), new InjectResult(serial));
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    /**
+     * Inject the files into the application of one device, never throws
+     *
+     * @param serial      device's serial, null for first device
+     * @param packageName package name of application
+     * @param soFiles     so files
+     * @param timeout     wait timeout
+     * @return result with the phase timings
+     */
+    public InjectResult injectDevice(String serial, String packageName, File[] soFiles, String breakPoints, long timeout) {
+        return injectDevice(serial, packageName, soFiles, breakPoints, Deadline.after(timeout));
+    }
+
+    private InjectResult injectDevice(String serial, String packageName, File[] soFiles, String breakPoints, Deadline deadline) {
+        return runDevice(serial, deadline, result -> {
+            if (mLaunch) {
+                long phaseStartTime = System.currentTimeMillis();
+                launchApplication(serial, packageName, mLaunchActivityName, deadline);
+                result.endPhase(InjectResult.PHASE_LAUNCH, phaseStartTime);
+            }
+            doInject(serial, packageName, soFiles, breakPoints, deadline, result);
+        });
+    }
+
+    /**
+     * Launch the application of one device, never throws
+     */
+    private InjectResult launchDevice(String serial, String packageName, String activityName, Deadline deadline) {
+        return runDevice(serial, deadline, result -> {
+            long phaseStartTime = System.currentTimeMillis();
+            launchApplication(serial, packageName, activityName, deadline);
+            result.endPhase(InjectResult.PHASE_LAUNCH, phaseStartTime);
+        });
+    }
+
+    private interface DeviceTask {
+        void run(InjectResult result) throws ArtInjectException;
+    }
+
+    /**
+     * Run the task of one device with its lines tagged by the serial, the failures are reported by the result
+     */
+    private static InjectResult runDevice(String serial, Deadline deadline, DeviceTask task) {
+        InjectResult result = new InjectResult(serial);
+        String previousPrefix = serial != null ? ThreadOutputStream.setPrefix("[" + serial + "] ") : null;
+        long startTime = System.currentTimeMillis();
+        try {
+            task.run(result);
+            result.setSuccess();
+        } catch (ArtInjectException e) {
+            result.setError(e.getErrorCode(), e.getMessage());
+        } catch (Throwable e) {
+            result.setError(null, e.toString());
+        } finally {
+            if (serial != null) {
+                ThreadOutputStream.setPrefix(previousPrefix);
+            }
+        }
+        result.setTotalTime(System.currentTimeMillis() - startTime);
+        return result;
+    }
+
+    /**
+     * Inject the files into the application of one device without blocking the caller
+     * <p>
+     * The job runs on the executor, the timeout is the deadline of the whole injection, from the
+     * discovery of the device to the load of the files. Cancelling the future stops the job at its
+     * next wait or phase, the process never exits.
+     * <p>
+     * Only the caller is not blocked: the job holds a thread of the executor for the whole
+     * injection, including the wait for the breakpoint hit. A pool of N threads runs at most N
+     * injections at once, the other jobs wait in its queue and their deadlines keep running.
+     *
+     * @param serial      device's serial, null for first device
+     * @param packageName package name of application
+     * @param soFiles     so files
+     * @param timeout     timeout of the whole injection
+     * @param executor    executor of the job
+     * @return future of the result, failures are reported by the result, see {@link #injectDevice}
+     */
+    public CompletableFuture<InjectResult> injectAsync(String serial, String packageName, File[] soFiles, String breakPoints,
+                                                       long timeout, Executor executor) {
+        return runAsync(timeout, executor, deadline -> injectDevice(serial, packageName, soFiles, breakPoints, deadline));
+    }
+
+    private static CompletableFuture<InjectResult> runAsync(long timeout, Executor executor, Function<Deadline, InjectResult> task) {
+        Deadline deadline = Deadline.after(timeout);
+        CompletableFuture<InjectResult> future = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                deadline.cancel();
+            }
+        });
+        try {
+            executor.execute(() -> {
+                if (!future.isDone()) {
+                    future.complete(task.apply(deadline));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Inject the files into the application of many devices, one worker per device
+     * <p>
+     * Each worker is a thread which is blocked for the whole injection of its device, see
+     * {@link #injectAsync}. The workers share the adb bridge and the extracted library files, so the wall time is the
+     * time of the slowest device. The devices which are not done before the timeout are reported
+     * as {@link ErrorCodes#INJECT_TIMEOUT}. The lines of a worker are tagged with the serial of its device.
+     *
+     * @param serials     device serials
+     * @param packageName package name of application
+     * @param soFiles     so files
+     * @param timeout     wait timeout
+     * @return results in the order of the serials
+     */
+    public List<InjectResult> injectFleet(List<String> serials, String packageName, File[] soFiles, String breakPoints, long timeout) {
+        return runFleet(serials, timeout, (serial, deadline) -> injectDevice(serial, packageName, soFiles, breakPoints, deadline));
+    }
+
+    /**
+     * Launch the application of many devices, one worker per device
+     *
+     * @param serials      device serials
+     * @param packageName  package name of application
+     * @param activityName activity to start, null for the launcher activity
+     * @param timeout      wait timeout
+     * @return results in the order of the serials
+     */
+    public List<InjectResult> launchFleet(List<String> serials, String packageName, String activityName, long timeout) {
+        return runFleet(serials, timeout, (serial, deadline) -> launchDevice(serial, packageName, activityName, deadline));
+    }
+
+    private static List<InjectResult> runFleet(List<String> serials, long timeout, BiFunction<String, Deadline, InjectResult> task) {
+        ThreadOutputStream.install();
+        List<InjectResult> results = new ArrayList<>();
+        if (serials.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(serials.size(), runnable -> {
+            Thread thread = new Thread(runnable, "artinjector-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<InjectResult>> futures = new ArrayList<>();
+            for (String serial : serials) {
+                futures.add(runAsync(timeout, executor, deadline -> task.apply(serial, deadline)));
+            }
+            long startTime = System.currentTimeMillis();
+            Deadline deadline = Deadline.after(timeout);
+            for (int i = 0; i < serials.size(); i++) {
+                CompletableFuture<InjectResult> future = futures.get(i);
+                InjectResult result;
+                try {
+                    result = future.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    result = new InjectResult(serials.get(i));
+                    result.setError(ErrorCodes.INJECT_TIMEOUT, "timeout!");
+                    result.setTotalTime(System.currentTimeMillis() - startTime);
+                } catch (InterruptedException | ExecutionException e) {
+                    future.cancel(true);
+                    result = new InjectResult(serials.get(i));
+                    result.setError(null, e.toString());
+                    result.setTotalTime(System.currentTimeMillis() - startTime);
                 }
+                results.add(result);
             }
-        }, 0, 1000);
-        IDevice device = getDevice(serial, timeout);
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
 
-        //TODO root
-        Client client = findClient(device, packageName, timeout);
-        if (client == null) {
-            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_CLIENT);
-            throw new ArtInjectException(
-                    "Can not get client, make sure this application is debuggable and is running, packageName="
-                            + packageName);
+    /**
+     * Resolve the serials of the devices to inject
+     *
+     * @param serials `all` for all online devices, otherwise the serials separated by `,`
+     * @param timeout max milliseconds to wait for the first device
+     * @return serials
+     */
+    public List<String> resolveSerials(String serials, long timeout) throws ArtInjectException {
+        List<String> result = new ArrayList<>();
+        if (!"all".equals(serials)) {
+            for (String serial : serials.split(",")) {
+                if (!serial.trim().isEmpty()) {
+                    result.add(serial.trim());
+                }
+            }
+            return result;
+        }
+
+        Deadline deadline = Deadline.after(timeout);
+        if (mBackend == Backend.DDMLIB) {
+            ensureAndroidDebugBridge(deadline);
+            // the first device is known before the others, wait until the bridge has listed them all
+            waitForInitialDeviceList(deadline);
+            getDevice(null, deadline);
+            for (IDevice device : mAndroidDebugBridge.getDevices()) {
+                if (device.isOnline()) {
+                    result.add(device.getSerialNumber());
+                }
+            }
+        } else {
+            List<String> found;
+            try {
+                found = AdbClientDevice.findAll(deadline);
+            } catch (IOException e) {
+                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_ADB);
+                throw new ArtInjectException(ErrorCodes.CANT_GET_ADB, "Can not connect to adb server: " + AdbConnection.getServerAddress(), e);
+            }
+            if (found == null) {
+                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_FIND_DEVICE);
+                throw new ArtInjectException(ErrorCodes.CANT_FIND_DEVICE, "Can not find any device");
+            }
+            result.addAll(found);
         }
+        System.out.println("[Success] found devices: " + result);
+        return result;
+    }
 
-        String appAbi = client.getClientData().getAbi();
+    /**
+     * Inject the files, every wait of every phase shares the deadline
+     */
+    private boolean doInject(String serial, String packageName, File[] soFiles, String breakPoints, Deadline deadline, InjectResult injectResult)
+            throws ArtInjectException {
+        long phaseStartTime = System.currentTimeMillis();
+        AdbDevice device = getAdbDevice(serial, deadline);
+        injectResult.setSerial(device.getSerialNumber());
+
+        //TODO root
+        AppProcess app = getAppProcess(device, packageName, deadline);
+        injectResult.endPhase(InjectResult.PHASE_DISCOVER, phaseStartTime);
+        checkDeadline(deadline, "discover");
+
+        String appAbi = app.getAbi();
         System.out.println(
                 "[Success] found app, packageName="
-                        + client.getClientData().getPackageName()
+                        + app.getPackageName()
                         + ", pid="
-                        + client.getClientData().getPid()
+                        + app.getPid()
                         + ", abi="
                         + appAbi);
 
-        // Push so file into device
+        // Collect all files which need to be pushed into device
+        phaseStartTime = System.currentTimeMillis();
         List<String> soRemotePaths = new ArrayList<>();
         List<String> apkRemotePaths = new ArrayList<>();
-        for (int i = 0; i < soFiles.length; i++) {
-            File soFile = soFiles[i];
-            String remotePath;
-            try {
+        Map<String, String> librarySearchPaths = new HashMap<>(); // key: apk remote path
+        List<Payload> payloads = new ArrayList<>();
+        List<Closeable> apkFiles = new ArrayList<>(); // apk zip files and leases of the extracted library files
+        List<Payload> jdwpPayloads = new ArrayList<>(); // written by the app when it hits the breakpoint
+        List<String> jdwpRemotePaths = new ArrayList<>();
+        ShellSession shellSession = null;
+        try {
+            for (File soFile : soFiles) {
                 if (soFile.getName().endsWith(".so")) {
-                    remotePath = pushFileIntoDevice(device, packageName, soFile);
-                    soRemotePaths.add(remotePath);
+                    soRemotePaths.add(FilePusher.getRemotePath(packageName, soFile.getName()));
+                    payloads.add(Payload.of(soFile));
                 } else if (soFile.getName().endsWith(".apk")) {
-                    remotePath = pushFileIntoDevice(device, packageName, soFile);
-                    apkRemotePaths.add(remotePath);
-                    List<File> libraryFiles = extractLibraryFilesInApk(soFile, appAbi);
-                    for (File libraryFile : libraryFiles) {
-                        pushFileIntoDevice(device, packageName, libraryFile);
+                    String apkRemotePath = FilePusher.getRemotePath(packageName, soFile.getName());
+                    apkRemotePaths.add(apkRemotePath);
+                    if (mLoadLibrariesFromApk && canLoadLibrariesFromApk(device, soFile, appAbi)) {
+                        // the linker maps the library files from the apk, nothing to extract
+                        librarySearchPaths.put(apkRemotePath, apkRemotePath + "!/lib/" + mapAbiToDirName(appAbi));
+                        payloads.add(Payload.of(soFile));
+                        continue;
+                    }
+                    Payload apkPayload = Payload.of(soFile);
+                    payloads.add(apkPayload);
+                    try {
+                        ZipFile apkZipFile = new ZipFile(soFile);
+                        apkFiles.add(apkZipFile);
+                        List<Payload> libraryPayloads = getLibraryPayloadsInApk(apkZipFile, appAbi);
+                        if (mExtractionCache != null && !libraryPayloads.isEmpty()) {
+                            try {
+                                ExtractionCache.Lease lease = mExtractionCache.get(apkPayload, mapAbiToDirName(appAbi), libraryPayloads);
+                                apkFiles.add(lease);
+                                libraryPayloads = lease.getPayloads();
+                            } catch (IOException e) {
+                                System.out.println("[Warning] can not use extraction cache, stream library files from apk, error: " + e);
+                            }
+                        }
+                        payloads.addAll(libraryPayloads);
+                    } catch (IOException e) {
+                        System.out.println("[ErrorCode]: " + ErrorCodes.CANT_PUSH_FILE);
+                        throw new ArtInjectException(ErrorCodes.CANT_PUSH_FILE, "Can not read apk file: " + soFile, e);
                     }
                 }
+            }
+
+            // Push so file into device, skip the files which are already up to date
+            List<String> pushRemotePaths = new ArrayList<>();
+            for (Payload payload : payloads) {
+                pushRemotePaths.add(FilePusher.getRemotePath(packageName, payload.getName()));
+            }
+            // one shell for all the commands of the push, started as the app user (or root) only once
+            shellSession = ShellSession.openAsAppUser(device.getSerialNumber(), packageName, deadline);
+            PushCache pushCache = new PushCache(device, packageName);
+            pushCache.setShellSession(shellSession);
+            pushCache.setDeadline(deadline);
+            pushCache.prefetch(pushRemotePaths);
+            List<Payload> outdatedPayloads = new ArrayList<>();
+            for (Payload payload : payloads) {
+                if (!pushCache.isUpToDate(payload, FilePusher.getRemotePath(packageName, payload.getName()))) {
+                    outdatedPayloads.add(payload);
+                }
+            }
+            try {
+                FilePusher filePusher = new FilePusher(device, packageName);
+                filePusher.setParallelism(mPushParallelism);
+                filePusher.setStreaming(mStreamingPush);
+                filePusher.setDelta(mDeltaPush);
+                filePusher.setCompression(mCompression);
+                filePusher.setShellSession(shellSession);
+                filePusher.setDeadline(deadline);
+                filePusher.push(outdatedPayloads);
             } catch (Throwable e) {
-                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_PUSH_FILE);
-                throw new ArtInjectException(
-                        "Can not push so file into device, packageName="
-                                + packageName
-                                + ", soFile="
-                                + soFile);
+                if (deadline.isExpired()) {
+                    // stopped by the deadline, not a failure of the shell, so don't fall back to jdwp
+                    closeAll(apkFiles);
+                    checkDeadline(deadline, "push");
+                }
+                if (shellSession != null) {
+                    System.out.println("[ErrorCode]: " + ErrorCodes.CANT_PUSH_FILE);
+                    throw new ArtInjectException(ErrorCodes.CANT_PUSH_FILE,
+                            "Can not push so file into device, packageName="
+                                    + packageName
+                                    + ", soFiles="
+                                    + outdatedPayloads, e);
+                }
+                // neither run-as nor su, only the app itself can write its data dir
+                System.out.println("[Warning] can not push files, transfer them over jdwp, error: " + e);
+                for (Payload payload : outdatedPayloads) {
+                    jdwpPayloads.add(payload);
+                    jdwpRemotePaths.add(FilePusher.getRemotePath(packageName, payload.getName()));
+                }
+            }
+            pushCache.report();
+        } finally {
+            if (shellSession != null) {
+                shellSession.close();
             }
+            if (jdwpPayloads.isEmpty()) {
+                closeAll(apkFiles);
+            } // else the entries of the apks are read by the transfer
+        }
+        injectResult.endPhase(InjectResult.PHASE_PUSH, phaseStartTime);
+        if (deadline.isExpired()) {
+            closeAll(apkFiles);
+            checkDeadline(deadline, "push");
         }
 
         //check abi
@@ -192,13 +709,32 @@ public class ArtInjector {
         //    throw new ArtInjectException("The architecture of the application and so does not match");
         //}
 
+        // Load by the resident agent of the app, the app is neither attached nor suspended
+        if (mAgentSocketName != null && jdwpPayloads.isEmpty()) {
+            phaseStartTime = System.currentTimeMillis();
+            if (injectByAgent(device, packageName, soRemotePaths, apkRemotePaths, librarySearchPaths, deadline)) {
+                injectResult.endPhase(InjectResult.PHASE_INJECT, phaseStartTime);
+                return true;
+            }
+        }
+
         // Attach app as JDWP Debugger
-        int port = client.getDebuggerListenPort();
+        phaseStartTime = System.currentTimeMillis();
+        int port;
+        try {
+            port = device.forwardJdwp(app);
+        } catch (IOException e) {
+            closeAll(apkFiles);
+            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_ATTACH_APP);
+            throw new ArtInjectException(ErrorCodes.CANT_ATTACH_APP, "Can not forward the jdwp connection of this app, packageName=" + packageName, e);
+        }
         final ArtDebugger artDebugger = new ArtDebugger();
-        boolean attached = artDebugger.attach("localhost", port, timeout);
+        boolean attached = !deadline.isExpired() && artDebugger.attach("localhost", port, Math.max(1, deadline.remaining()));
         if (!attached) {
+            device.removeJdwpForward(port);
+            closeAll(apkFiles);
             System.out.println("[ErrorCode]: " + ErrorCodes.CANT_ATTACH_APP);
-            throw new ArtInjectException(
+            throw new ArtInjectException(ErrorCodes.CANT_ATTACH_APP,
                     "Can not attach to this app, packageName="
                             + packageName
                             + ", host=localhost, port="
@@ -211,7 +747,9 @@ public class ArtInjector {
                         + artDebugger.getVirtualMachine().name()
                         + ", jdwp version="
                         + artDebugger.getVirtualMachine().version());
+        injectResult.endPhase(InjectResult.PHASE_ATTACH, phaseStartTime);
 
+        phaseStartTime = System.currentTimeMillis();
         String[][] BREAKPOINTS;
         if (!apkRemotePaths.isEmpty()) {
             BREAKPOINTS = new String[][] {
@@ -239,7 +777,7 @@ public class ArtInjector {
                 int index = point.lastIndexOf(".");
                 if (index == -1) {
                     System.out.println("[ErrorCode]: " + ErrorCodes.BREAKPOINTS_HAVE_ERROR);
-                    throw new ArtInjectException("Breakpoint format error");
+                    throw new ArtInjectException(ErrorCodes.BREAKPOINTS_HAVE_ERROR, "Breakpoint format error");
                 }
                 String className = point.substring(0, index);
                 String methodName = point.substring(index + 1);
@@ -247,135 +785,317 @@ public class ArtInjector {
                 BREAKPOINTS[i][1] = methodName;
             }
         }
-        // Create breakpoints
+        // Create breakpoints, only the hits of the main thread are reported by the target VM
         for (String[] breakpoint : BREAKPOINTS) {
             if (artDebugger.addBreakpoint(
                     new ArtDebugger.Breakpoint.Builder()
                             .className(breakpoint[0])
                             .methodName(breakpoint[1])
+                            .threadName("main")
                             .build())) {
                 System.out.println("[Success] added breakpoint: " + breakpoint[0] + "." + breakpoint[1]);
             }
         }
 
         // Inject java code to load so
+        // the listener claims the first hit, or the waiter claims the injection when it gives up, never both
+        AtomicBoolean claimed = new AtomicBoolean();
         CountDownLatch latch = new CountDownLatch(1); // wait for breakpoint hint
-        final ArtDebugger.EvaluateResult[] future = {null};
+        CompletableFuture<ArtDebugger.EvaluateResult> loadFuture = new CompletableFuture<>(); // result of the last load
         artDebugger.registerEventListener(
                 event -> {
-                    ThreadReference thread = event.getEvaluateContext().getThread();
                     if (event instanceof ArtDebugger.BreakpointEvent
-                            && future[0] == null
-                            && "main".equals(thread.name())) {
+                            && !claimed.get()
+                            && isMainThreadHit((ArtDebugger.BreakpointEvent) event)
+                            && claimed.compareAndSet(false, true)) {
+                        latch.countDown();
                         ArtDebugger.MethodBreakpoint bp = ((ArtDebugger.BreakpointEvent)event).getBreakpoint();
                         System.out.println("[Success] hit breakpoint: " + bp.getClassName() + "." + bp.getMethodName());
-
-                        for (String soRemotePath : soRemotePaths) {
-                            future[0] = // TODO: why index = 0?
-                                    artDebugger.evaluateStaticMethod(
-                                            event.getEvaluateContext(),
-                                            "java.lang.System",
-                                            "load",
-                                            "(Ljava/lang/String;)V",
-                                            new String[]{soRemotePath});
-                        }
-                        for (String apkRemotePath : apkRemotePaths) {
-                            if (bp.getClassName().equals("android.content.ContextWrapper")
-                                    && bp.getMethodName().equals("attachBaseContext")) {
-                                String cacheCodePath = "/data/data/" + packageName + "/cache";
-                                String librarySearchPath = "/data/data/" + packageName;
-                                future[0] = injectApk(event.getEvaluateContext(), artDebugger, apkRemotePath, cacheCodePath, librarySearchPath);
+                        try {
+                            // the first hit is enough, don't suspend the app any more
+                            artDebugger.disarmBreakpoints();
+
+                            if (!jdwpPayloads.isEmpty()) {
+                                JdwpFileTransfer transfer = new JdwpFileTransfer(artDebugger, event.getEvaluateContext());
+                                transfer.setDeadline(deadline);
+                                transfer.transfer(jdwpPayloads, jdwpRemotePaths);
+                            }
+                            // a load is never interrupted, so none is started after the deadline
+                            deadline.throwIfExpired("load");
+
+                            ArtDebugger.EvaluateResult result = null;
+                            for (String soRemotePath : soRemotePaths) {
+                                result = // TODO: why index = 0?
+                                        artDebugger.evaluateStaticMethod(
+                                                event.getEvaluateContext(),
+                                                "java.lang.System",
+                                                "load",
+                                                "(Ljava/lang/String;)V",
+                                                new String[]{soRemotePath});
                             }
+                            for (String apkRemotePath : apkRemotePaths) {
+                                if (bp.getClassName().equals("android.content.ContextWrapper")
+                                        && bp.getMethodName().equals("attachBaseContext")) {
+                                    String cacheCodePath = getCodeCacheDir(packageName);
+                                    String librarySearchPath = getLibrarySearchPath(packageName, librarySearchPaths, apkRemotePath);
+                                    result = injectApk(event.getEvaluateContext(), artDebugger, apkRemotePath, cacheCodePath, librarySearchPath,
+                                            AgentClient.getTokenFile(device.getSerialNumber(), packageName));
+                                }
+                            }
+                            loadFuture.complete(result);
+                        } catch (Throwable e) {
+                            loadFuture.completeExceptionally(e);
                         }
-                        latch.countDown();
                         return true;
                     }
                     return false;
                 });
+        deadline.onCancel(latch::countDown);
         try {
             System.out.println("[Success] waiting for breakpoints");
-            latch.await(timeout, TimeUnit.MILLISECONDS);
+            latch.await(deadline.remaining(), TimeUnit.MILLISECONDS);
         } catch (InterruptedException ignore) {
         }
+        boolean hit = !claimed.compareAndSet(false, true);
+        ArtDebugger.EvaluateResult result = null;
+        Throwable loadError = null;
+        if (hit) {
+            // the app is inside the loads, wait for them before the debugger is disposed, even beyond the deadline
+            try {
+                long timeout = Math.min(deadline.remaining(), Long.MAX_VALUE - LOAD_GRACE_TIMEOUT) + LOAD_GRACE_TIMEOUT;
+                result = loadFuture.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                loadError = e.getCause();
+            } catch (InterruptedException | TimeoutException e) {
+                loadError = e;
+            }
+        }
         artDebugger.dispose();
+        device.removeJdwpForward(port);
+        closeAll(apkFiles);
+        injectResult.endPhase(InjectResult.PHASE_INJECT, phaseStartTime);
+
+        if (!hit) {
+            if (deadline.isCancelled()) {
+                checkDeadline(deadline, "wait for breakpoints");
+            }
+            System.out.println("[ErrorCode]: " + ErrorCodes.BREAKPOINT_TIMEOUT);
+            throw new ArtInjectException(ErrorCodes.BREAKPOINT_TIMEOUT,
+                    "Breakpoint timeout, breakpoints=" + artDebugger.getBreakpoints());
+        }
+        if (loadError instanceof InterruptedIOException && deadline.isExpired()) {
+            checkDeadline(deadline, "hit breakpoint"); // the transfer or the loads are stopped by the deadline
+        }
+        if (loadError instanceof IOException) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_PUSH_FILE);
+            throw new ArtInjectException(ErrorCodes.CANT_PUSH_FILE,
+                    "Can not transfer files over jdwp, packageName=" + packageName + ", soFiles=" + jdwpPayloads, loadError);
+        }
+        if (loadError != null) {
+            Integer errorCode = loadError instanceof TimeoutException ? ErrorCodes.INJECT_TIMEOUT : ErrorCodes.LOAD_SO_FAIL;
+            System.out.println("[ErrorCode]: " + errorCode);
+            throw new ArtInjectException(errorCode, "Can not load the files after the breakpoint hit, error=" + loadError, loadError);
+        }
 
         // Get the result
-        ArtDebugger.EvaluateResult result = future[0];
         if (result == null) {
             System.out.println("[ErrorCode]: " + ErrorCodes.BREAKPOINT_TIMEOUT);
-            throw new ArtInjectException(
+            throw new ArtInjectException(ErrorCodes.BREAKPOINT_TIMEOUT,
                     "Breakpoint timeout, breakpoints=" + artDebugger.getBreakpoints());
         }
         if (result.getError() != null) {
-            String errorMessage = result.getError();
-            String tips = errorMessage.substring(errorMessage.lastIndexOf(" ") + 1, errorMessage.length() - 1);
-            if (tips.equals("32-bit"))
-                System.out.println("[ErrorCode]: " + ErrorCodes.SOFILE_SHOULD_USE_32BIT);
-            else if (tips.equals("64-bit"))
-                System.out.println("[ErrorCode]: " + ErrorCodes.SOFILE_SHOULD_USE_64BIT);
-            throw new ArtInjectException(
+            Integer errorCode = getLoadErrorCode(result.getError());
+            if (!errorCode.equals(ErrorCodes.LOAD_SO_FAIL))
+                System.out.println("[ErrorCode]: " + errorCode);
+            throw new ArtInjectException(errorCode,
                     "Evaluate java code throw exception, error=" + result.getError());
         }
         return true;
     }
 
     /**
-     * unzip the apkFile and extract all so files
-     *
-     * @param apkFile apk file
-     * @param appAbi 64-bit (arm64)
-     * @return so files list
+     * The target VM reports only the hits of the main thread once the thread filter is installed,
+     * the name of the thread is queried only if the main thread was not found
      */
-    private List<File> extractLibraryFilesInApk(File apkFile, String appAbi) {
-        List<File> files = new ArrayList<>();
-        String pathPrefix = "lib/" + mapAbiToDirName(appAbi) + "/"; // eg: /lib/arm64-v8a, /lib/armeabi-v7a
+    private static boolean isMainThreadHit(ArtDebugger.BreakpointEvent event) {
+        return event.getBreakpoint().getThread() != null
+                || "main".equals(event.getEvaluateContext().getThread().name());
+    }
 
-        System.out.println("[Success] unzip apk file: " + apkFile);
-        ZipInputStream inputStream = null;
-        File tempDir = null;
-        byte[] buffer = new byte[4 * 1024];
+    /**
+     * Load the files by the resident agent of the app, the connection is closed when the deadline expires
+     *
+     * @return false if the agent is not running
+     */
+    private boolean injectByAgent(AdbDevice device, String packageName, List<String> soRemotePaths,
+                                  List<String> apkRemotePaths, Map<String, String> librarySearchPaths,
+                                  Deadline deadline) throws ArtInjectException {
+        String socketName = mAgentSocketName.isEmpty() ? AgentClient.getDefaultSocketName(packageName) : mAgentSocketName;
+        long startTime = System.currentTimeMillis();
+        AgentClient agent;
         try {
-            tempDir = Files.createTempDirectory("artinjector-").toFile();
-            inputStream = new ZipInputStream(new FileInputStream(apkFile));
-            ZipEntry entry;
-            while ((entry = inputStream.getNextEntry()) != null) {
-                if (entry.getName() != null && entry.getName().startsWith(pathPrefix) && entry.getName().endsWith(".so")) {
-                    String soFileName = entry.getName().substring(pathPrefix.length());
-
-                    BufferedOutputStream out = null;
-                    File outputFile = new File(tempDir, soFileName);
-                    try {
-                        out = new BufferedOutputStream(new FileOutputStream(outputFile));
-                        int read = 0;
-                        while ((read = inputStream.read(buffer)) != -1) {
-                            out.write(buffer, 0, read);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } finally {
-                        if (out != null) {
-                            try {
-                                out.close();
-                            } catch (IOException ignore) {
-                            }
-                        }
-                    }
-                    System.out.println("[Success] extract library file from " + entry.getName()  + " to " + outputFile);
-                    files.add(outputFile);
-                }
+            String token = TokenFile.read(AgentClient.getTokenFile(device.getSerialNumber(), packageName));
+            agent = AgentClient.connect(device.getSerialNumber(), socketName, token, deadline.bound(AGENT_TIMEOUT));
+        } catch (IOException e) {
+            System.out.println("[Warning] agent is not running, inject by jdwp debugger, socket=" + socketName + ", error: " + e);
+            return false;
+        }
+        System.out.println("[Success] connected agent, socket=" + socketName);
+        try (Deadline.Watch ignored = deadline.watch(agent)) {
+            for (String soRemotePath : soRemotePaths) {
+                agent.loadLibrary(soRemotePath);
+                System.out.println("[Success] agent loaded library: " + soRemotePath);
+            }
+            for (String apkRemotePath : apkRemotePaths) {
+                agent.loadApk(apkRemotePath, getCodeCacheDir(packageName),
+                        getLibrarySearchPath(packageName, librarySearchPaths, apkRemotePath));
+                System.out.println("[Success] agent loaded apk: " + apkRemotePath);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (deadline.isExpired()) {
+                checkDeadline(deadline, "agent load");
+            }
+            Integer errorCode = e instanceof AgentClient.AgentException ? getLoadErrorCode(e.getMessage()) : ErrorCodes.LOAD_SO_FAIL;
+            System.out.println("[ErrorCode]: " + errorCode);
+            throw new ArtInjectException(errorCode, "Agent can not load the files, error=" + e.getMessage(), e);
         } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException ignore) {
-                }
+            try {
+                agent.close();
+            } catch (IOException ignore) {
             }
         }
+        System.out.println("[Success] agent finished in " + (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+
+    /**
+     * @param error error message of System.load, eg: `... is 32-bit instead of 64-bit]`
+     * @return error code of the load error
+     */
+    private static Integer getLoadErrorCode(String error) {
+        if (error == null || error.isEmpty()) {
+            return ErrorCodes.LOAD_SO_FAIL;
+        }
+        String tips = error.substring(error.lastIndexOf(" ") + 1, error.length() - 1);
+        if (tips.equals("32-bit"))
+            return ErrorCodes.SOFILE_SHOULD_USE_32BIT;
+        else if (tips.equals("64-bit"))
+            return ErrorCodes.SOFILE_SHOULD_USE_64BIT;
+        return ErrorCodes.LOAD_SO_FAIL;
+    }
+
+    private static String getCodeCacheDir(String packageName) {
+        return "/data/data/" + packageName + "/cache";
+    }
+
+    /**
+     * @param librarySearchPaths library directories in the apks, key: apk remote path
+     * @return library search path of the dex class loader of the apk
+     */
+    private static String getLibrarySearchPath(String packageName, Map<String, String> librarySearchPaths, String apkRemotePath) {
+        String librarySearchPath = "/data/data/" + packageName;
+        if (librarySearchPaths.containsKey(apkRemotePath)) {
+            librarySearchPath = librarySearchPaths.get(apkRemotePath) + ":" + librarySearchPath;
+        }
+        return librarySearchPath;
+    }
+
+    /**
+     * Stop the injection if the deadline is cancelled or expired
+     *
+     * @param deadline deadline of the injection
+     * @param phase    phase which is done, eg: push
+     */
+    private static void checkDeadline(Deadline deadline, String phase) throws ArtInjectException {
+        if (deadline.isCancelled()) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.INJECT_TIMEOUT);
+            throw new ArtInjectException(ErrorCodes.INJECT_TIMEOUT, "Inject is cancelled after " + phase);
+        }
+        if (deadline.isExpired()) {
+            System.out.println("[ErrorCode]: " + ErrorCodes.INJECT_TIMEOUT);
+            throw new ArtInjectException(ErrorCodes.INJECT_TIMEOUT, "timeout! after " + phase);
+        }
+    }
+
+    private static void closeAll(List<Closeable> files) {
+        for (Closeable file : files) {
+            try {
+                file.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
 
-        return files;
+    /**
+     * Find all so files of the app abi in the apk, only the central directory of the apk is read
+     *
+     * @param apkZipFile apk file
+     * @param appAbi     64-bit (arm64)
+     * @return so files which are streamed from the apk
+     */
+    private List<Payload> getLibraryPayloadsInApk(ZipFile apkZipFile, String appAbi) {
+        List<Payload> payloads = new ArrayList<>();
+        String pathPrefix = "lib/" + mapAbiToDirName(appAbi) + "/"; // eg: /lib/arm64-v8a, /lib/armeabi-v7a
+
+        Enumeration<? extends ZipEntry> entries = apkZipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.getName().startsWith(pathPrefix) && entry.getName().endsWith(".so")) {
+                String soFileName = entry.getName().substring(pathPrefix.length());
+                System.out.println("[Success] found library file in apk: " + entry.getName());
+                payloads.add(Payload.of(apkZipFile, entry, soFileName));
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Check whether all library files of the app abi in the apk can be loaded in place (`base.apk!/lib/<abi>/libx.so`),
+     * which requires the entries to be stored (uncompressed) and page aligned, eg: `zipalign -p 4`
+     *
+     * @param device  device
+     * @param apkFile apk file
+     * @param appAbi  64-bit (arm64)
+     * @return false if the library files need to be extracted
+     */
+    private boolean canLoadLibrariesFromApk(AdbDevice device, File apkFile, String appAbi) {
+        String pathPrefix = "lib/" + mapAbiToDirName(appAbi) + "/";
+        List<ApkFile.Entry> entries;
+        try {
+            entries = ApkFile.readEntries(apkFile, pathPrefix);
+        } catch (IOException e) {
+            System.out.println("[Warning] can not read the layout of apk, extract library files, error: " + e);
+            return false;
+        }
+        List<ApkFile.Entry> libraryEntries = new ArrayList<>();
+        for (ApkFile.Entry entry : entries) {
+            if (entry.getName().endsWith(".so")) {
+                libraryEntries.add(entry);
+            }
+        }
+        if (libraryEntries.isEmpty()) {
+            return false;
+        }
+        for (ApkFile.Entry entry : libraryEntries) {
+            if (!entry.isPageAligned()) {
+                System.out.println("[Warning] library file is compressed or not page aligned, extract library files: "
+                        + entry.getName() + ", method=" + entry.getMethod() + ", offset=" + entry.getDataOffset());
+                return false;
+            }
+        }
+
+        int sdk;
+        try {
+            sdk = Integer.parseInt(device.getProperty("ro.build.version.sdk"));
+        } catch (NumberFormatException e) {
+            sdk = 0;
+        }
+        if (sdk < LOAD_LIBRARIES_FROM_APK_MIN_SDK) {
+            System.out.println("[Warning] loading library files from apk is not supported by sdk " + sdk + ", extract library files");
+            return false;
+        }
+        System.out.println("[Success] load " + libraryEntries.size() + " library files from apk in place: " + apkFile.getName() + "!/" + pathPrefix);
+        return true;
     }
 
     private String mapAbiToDirName(String appAbi) {
@@ -391,25 +1111,36 @@ public class ArtInjector {
         throw new IllegalStateException("unsupported appAbi: " + appAbi);
     }
 
-    private ArtDebugger.EvaluateResult injectApk(ArtDebugger.EvaluateContext evaluateContext, ArtDebugger artDebugger, String apkPath, String codeCacheDir, String librarySearchPath) {
+    /**
+     * Load the apk into the app and call its entry point
+     * <p>
+     * Everything which is known to the debugger is read from the mirrors instead of being evaluated
+     * in the app: the class loader of the app and the class objects. Only three methods are invoked
+     * while the main thread is suspended: `new DexClassLoader(...)`, `Class.forName(entry class)` and
+     * the entry point itself, which is invoked directly instead of through `Method.invoke` if the
+     * types of its arguments are visible to the loader of the entry class.
+     * <p>
+     * The entry of an agent gets a new token, which is written to the token file once the entry returns.
+     */
+    private ArtDebugger.EvaluateResult injectApk(ArtDebugger.EvaluateContext evaluateContext, ArtDebugger artDebugger, String apkPath,
+                                                 String codeCacheDir, String librarySearchPath, File agentTokenFile) {
         final ThreadReference thread = evaluateContext.getThread();
-        final Method method = evaluateContext.getMethod();
+        long startTime = System.currentTimeMillis();
+        int invocations = 0;
 
         StackFrame stackFrame = null;
         ObjectReference contextRef = null;
         try {
-            for (int i = 0, size = thread.frameCount(); i < size; i++) {
-                StackFrame frame = thread.frame(i);
-                System.out.println("[Success] stack frame #" + i + " " + frame);
-                if (i == 0) {
-                    stackFrame = frame;
-                    for (LocalVariable localVariable : stackFrame.visibleVariables()) {
-                        //System.out.println("localVariable: " +  localVariable + ", type: " + localVariable.type().name());
-                        if (localVariable.typeName().equals("android.content.Context")) {
-                            contextRef = (ObjectReference) frame.getValue(localVariable);
-                            //System.out.println("contextRef: " +  contextRef);
-                            break;
-                        }
+            List<StackFrame> frames = thread.frames(); // one round trip for the whole stack
+            for (int i = 0; i < frames.size(); i++) {
+                System.out.println("[Success] stack frame #" + i + " " + frames.get(i));
+            }
+            if (!frames.isEmpty()) {
+                stackFrame = frames.get(0);
+                for (LocalVariable localVariable : stackFrame.visibleVariables()) {
+                    if (localVariable.typeName().equals("android.content.Context")) {
+                        contextRef = (ObjectReference) stackFrame.getValue(localVariable);
+                        break;
                     }
                 }
             }
@@ -433,37 +1164,18 @@ public class ArtInjector {
 
         ArtDebugger.EvaluateResult result;
 
-        /*
-        // Class<?> contextWrapperClass = this.getClass();
-        ArtDebugger.EvaluateResult result = artDebugger.evaluateMethod(evaluateContext, "getClass", "()Ljava/lang/Class;", thisObjectReference, new Object[]{});
-        if (result.hasError()) {
-            return result;
-        }
-        ObjectReference contextWrapperClass = (ObjectReference) result.getResult();
-        System.out.println("[Success] found contextWrapper's class " + contextWrapperClass);
-         */
-
-        System.out.println("[Success] Evaluate code: `ClassLoader classLoader = baseContext.getClassLoader();`");
-        result = artDebugger.evaluateMethod(evaluateContext, "getClassLoader", "()Ljava/lang/ClassLoader;", contextRef, new Object[]{});
-        if (result.hasError()) {
-            return result;
+        // the application class is loaded by the class loader of the app, unless the app has no custom application class
+        ObjectReference classLoaderRef = thisObjectReference.referenceType().classLoader();
+        if (classLoaderRef == null) {
+            System.out.println("[Success] Evaluate code: `ClassLoader classLoader = baseContext.getClassLoader();`");
+            result = artDebugger.evaluateMethod(evaluateContext, "getClassLoader", "()Ljava/lang/ClassLoader;", contextRef, new Object[]{});
+            invocations++;
+            if (result.hasError()) {
+                return result;
+            }
+            classLoaderRef = (ObjectReference) result.getResult();
         }
-        ObjectReference classLoaderRef = (ObjectReference) result.getResult();
-        System.out.println("[Success] Evaluate code result: " + classLoaderRef);
-
-        // File codeCacheDir = this.getCodeCacheDir();
-        //result = artDebugger.evaluateMethod(evaluateContext, "getCodeCacheDir", "()Ljava/io/File;", contextObjectReference, new Object[]{});
-        //if (result.hasError()) {
-        //    return result;
-        //}
-        //ObjectReference fileRef = (ObjectReference) result.getResult();
-
-        // String codePath = codeCacheDir.getAbsolutePath();
-        //result = artDebugger.evaluateMethod(evaluateContext, "getAbsolutePath", "()Ljava/lang/String;", fileRef, new Object[]{});
-        //if (result.hasError()) {
-        //    return result;
-        //}
-        //ObjectReference cachePath = (ObjectReference) result.getResult();
+        System.out.println("[Success] class loader of the app: " + classLoaderRef);
 
         System.out.println("[Success] Evaluate code: `DexClassLoader dexClassLoader = new DexClassLoader(apkPath, codePath, librarySearchPath, classLoader);`");
         result = artDebugger.evaluateStaticMethod(
@@ -472,6 +1184,7 @@ public class ArtInjector {
                 "<init>",
                 "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/ClassLoader;)V",
                 new Object[]{apkPath, codeCacheDir, librarySearchPath, classLoaderRef});
+        invocations++;
         if (result.hasError()) {
             return result;
         }
@@ -485,71 +1198,98 @@ public class ArtInjector {
                 "forName",
                 "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;",
                 new Object[] {INJECT_APK_ENTRY_CLASS_NAME, Boolean.TRUE, dexClassLoaderRef});
+        invocations++;
         if (result.hasError()) {
             return result;
         }
-        ObjectReference manifestClassRef = (ObjectReference) result.getResult();
-        System.out.println("[Success] Evaluate code result: " + manifestClassRef);
-
-        System.out.println("[Success] Evaluate code: `Class<?> classLoaderClass = Class.forName(\"java.lang.ClassLoader\", true, dexClassLoader);`");
-        result = artDebugger.evaluateStaticMethod(
-                evaluateContext,
-                "java.lang.Class",
-                "forName",
-                "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;",
-                new Object[]{"java.lang.ClassLoader", Boolean.TRUE, dexClassLoaderRef});
-        if (result.hasError()) {
-            return result;
+        ClassObjectReference entryClassRef = (ClassObjectReference) result.getResult();
+        ClassType entryClass = (ClassType) entryClassRef.reflectedType();
+        System.out.println("[Success] Evaluate code result: " + entryClass);
+
+        Method entryMethod = null;
+        for (Method m : entryClass.methodsByName(INJECT_APK_ENTRY_METHOD_NAME)) {
+            if (m.isStatic() && m.signature().startsWith(INJECT_APK_AGENT_ENTRY_METHOD_ARGUMENTS)) {
+                entryMethod = m;
+                break;
+            } else if (m.isStatic() && m.signature().startsWith(INJECT_APK_ENTRY_METHOD_ARGUMENTS)) {
+                entryMethod = m;
+            }
         }
-        ObjectReference classLoaderClassRef = (ObjectReference) result.getResult();
-        System.out.println("[Success] Evaluate code result: " + classLoaderClassRef);
-
-        System.out.println("[Success] Evaluate code: `Class<?> contextClass = Class.forName(\"android.app.Application\", true, dexClassLoader);`");
-        result = artDebugger.evaluateStaticMethod(
-                evaluateContext,
-                "java.lang.Class",
-                "forName",
-                "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;",
-                //new Object[]{"android.content.Content", Boolean.TRUE, classLoaderRef});
-                new Object[]{"android.app.Application", Boolean.TRUE, classLoaderRef});
-        if (result.hasError()) {
-            return result;
+        if (entryMethod == null) {
+            return new ArtDebugger.EvaluateResult(null, "Can not find method " + INJECT_APK_ENTRY_CLASS_NAME + "." + INJECT_APK_ENTRY_METHOD_NAME + INJECT_APK_ENTRY_METHOD_ARGUMENTS);
         }
-        ObjectReference contextClassRef = (ObjectReference) result.getResult();
-        System.out.println("[Success] Evaluate code result: " + contextClassRef);
-
-        System.out.println("[Success] Evaluate code: `Method entryMethod = manifestClass.getDeclaredMethod(INJECT_APK_ENTRY_METHOD_NAME, contextClass, classLoaderClass, classLoaderClass);`");
-        result = artDebugger.evaluateMethod(evaluateContext, "getDeclaredMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", manifestClassRef, new Object[]{ INJECT_APK_ENTRY_METHOD_NAME, contextClassRef, classLoaderClassRef, classLoaderClassRef });
-        if (result.hasError()) {
-            return result;
+        String agentToken = entryMethod.signature().startsWith(INJECT_APK_AGENT_ENTRY_METHOD_ARGUMENTS) ? TokenFile.newToken() : null;
+        List<Object> entryArgs = new ArrayList<>(Arrays.asList(thisObjectReference, dexClassLoaderRef, classLoaderRef));
+        if (agentToken != null) {
+            entryArgs.add(artDebugger.newString(agentToken));
         }
-        ObjectReference entryMethodRef = (ObjectReference) result.getResult();
-        System.out.println("[Success] Evaluate code result: " + entryMethodRef);
 
-        System.out.println("[Success] Evaluate code: `entryMethod.invoke(null, context, dexClassLoader, originClassLoader);`");
-        result = artDebugger.evaluateMethod(evaluateContext, "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", entryMethodRef, new Object[]{ null, thisObjectReference, dexClassLoaderRef, classLoaderRef });
+        boolean argumentTypesLoaded;
+        try {
+            entryMethod.argumentTypes();
+            argumentTypesLoaded = true;
+        } catch (ClassNotLoadedException e) {
+            argumentTypesLoaded = false;
+        }
+        if (argumentTypesLoaded) {
+            System.out.println("[Success] Evaluate code: `EntryPoint.entry(application, dexClassLoader, originClassLoader" + (agentToken != null ? ", token" : "") + ");`");
+            result = artDebugger.evaluateStaticMethod(evaluateContext, entryClass, entryMethod.name(), entryMethod.signature(), entryArgs.toArray());
+            invocations++;
+        } else {
+            // the debugger can only check the arguments of the types which are visible to the loader of the entry class, use reflection instead
+            ObjectReference contextClassRef = artDebugger.getClassObject("android.app.Application");
+            ObjectReference classLoaderClassRef = artDebugger.getClassObject("java.lang.ClassLoader");
+            List<Object> argumentTypes = new ArrayList<>(Arrays.asList(INJECT_APK_ENTRY_METHOD_NAME, contextClassRef, classLoaderClassRef, classLoaderClassRef));
+            if (agentToken != null) {
+                argumentTypes.add(artDebugger.getClassObject("java.lang.String"));
+            }
+            System.out.println("[Success] Evaluate code: `Method entryMethod = manifestClass.getDeclaredMethod(INJECT_APK_ENTRY_METHOD_NAME, contextClass, classLoaderClass, classLoaderClass" + (agentToken != null ? ", stringClass" : "") + ");`");
+            result = artDebugger.evaluateMethod(evaluateContext, "getDeclaredMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", entryClassRef, argumentTypes.toArray());
+            invocations++;
+            if (result.hasError()) {
+                return result;
+            }
+            ObjectReference entryMethodRef = (ObjectReference) result.getResult();
+            System.out.println("[Success] Evaluate code: `entryMethod.invoke(null, context, dexClassLoader, originClassLoader);`");
+            entryArgs.add(0, null);
+            result = artDebugger.evaluateMethod(evaluateContext, "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", entryMethodRef, entryArgs.toArray());
+            invocations++;
+        }
         if (result.hasError()) {
             return result;
         }
         Value resultRef = (Value) result.getResult();
         System.out.println("[Success] Evaluate code result: " + resultRef);
+        if (agentToken != null) {
+            try {
+                TokenFile.write(agentTokenFile, agentToken);
+                System.out.println("[Success] agent token is written to " + agentTokenFile);
+            } catch (IOException e) {
+                System.out.println("[Warning] can not write the agent token, the agent can not be used: " + e);
+            }
+        }
+        System.out.println("[Success] apk is bootstrapped with " + invocations + " invocations in " + (System.currentTimeMillis() - startTime) + "ms");
 
         return result;
     }
 
-    private void ensureAndroidDebugBridge() throws ArtInjectException {
+    /**
+     * Create the bridge once, and wait until it is connected to the adb server
+     *
+     * @param deadline deadline of the wait
+     */
+    private synchronized void ensureAndroidDebugBridge(Deadline deadline) throws ArtInjectException {
         if (mAndroidDebugBridge == null) {
             try {
 
-                //check port
-                int debugPort = 9700;
-                while (!Utils.checkPort(debugPort)) {
-                    debugPort++;
-                }
+                // reserve the ports, so the concurrent injectors on this host never collide
+                DebugPortAllocator portAllocator = DebugPortAllocator.getInstance();
+                int debugPortBase = portAllocator.getDebugPortBase();
+                int debugPort = portAllocator.getSelectedDebugPort();
 
-                DdmPreferences.setDebugPortBase(9600);
+                DdmPreferences.setDebugPortBase(debugPortBase);
                 DdmPreferences.setSelectedDebugPort(debugPort);
-                System.out.println("[Success] UsePort is : " + debugPort);
+                System.out.println("[Success] UsePort is : " + debugPort + ", debug port base: " + debugPortBase);
                 AndroidDebugBridge.disconnectBridge();
                 AndroidDebugBridge.terminate();
                 AndroidDebugBridge.init(true, false, ImmutableMap.of());
@@ -573,136 +1313,112 @@ public class ArtInjector {
                         }
                     });
                     mAndroidDebugBridge = AndroidDebugBridge.createBridge();
-                    Thread.sleep(1000);
-                }
-                while (!mAndroidDebugBridge.isConnected()) {
-                    try {
-                        TimeUnit.MILLISECONDS.sleep(200);
-                    } catch (InterruptedException e) {
-                        // if cancelled, don't wait for connection and return immediately
-                        throw new ArtInjectException("Timed out attempting to connect to adb: " + mAdbPath);
-                    }
                 }
             } catch (Throwable e) {
                 System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_ADB);
                 System.out.println(mAdbPath);
-                throw new ArtInjectException("Can not create AndroidDebugBridget", e);
+                throw new ArtInjectException(ErrorCodes.CANT_GET_ADB, "Can not create AndroidDebugBridget", e);
             }
         }
-    }
-
-    public IDevice findDevice(String serial, long timeout) throws ArtInjectException {
-        ensureAndroidDebugBridge();
-        IDevice targetDevice = null;
-
-        long startTime = System.currentTimeMillis();
-        while (targetDevice == null) {
-            if (System.currentTimeMillis() - startTime > timeout) {
-                break;
+        while (!mAndroidDebugBridge.isConnected()) {
+            if (deadline.isCancelled()) {
+                checkDeadline(deadline, "connect adb");
             }
-
-            if (mAndroidDebugBridge.hasInitialDeviceList()) {
-                IDevice[] devices = mAndroidDebugBridge.getDevices();
-                if (devices.length > 0) {
-                    for (IDevice device : devices) {
-                        if (serial == null || serial.equals(device.getSerialNumber())) {
-                            targetDevice = device;
-                            break;
-                        }
-                    }
-                }
+            if (deadline.isExpired()) {
+                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_ADB);
+                throw new ArtInjectException(ErrorCodes.CANT_GET_ADB, "Timed out attempting to connect to adb: " + mAdbPath);
             }
-
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignore) {
+                TimeUnit.MILLISECONDS.sleep(Math.min(200, deadline.remaining()));
+            } catch (InterruptedException e) {
+                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_ADB);
+                throw new ArtInjectException(ErrorCodes.CANT_GET_ADB, "Interrupted attempting to connect to adb: " + mAdbPath);
             }
         }
-
-        return targetDevice;
     }
 
-    private Client findClient(IDevice device, String packageName, long timeout) {
-        Client client = device.getClient(packageName);
-        long startTime = System.currentTimeMillis();
-        while (client == null) {
-            if (System.currentTimeMillis() - startTime > timeout) {
-                break;
-            }
-            Client[] clients = device.getClients();
-            System.out.println("---------------- " + clients.length);
-            for (Client c : clients) {
-                System.out.println(
-                        "[Success] debuggable app, packageName: "
-                                + c.getClientData().getPackageName()
-                                + ", debugger port: "
-                                + c.getDebuggerListenPort());
-                if (packageName.equals(c.getClientData().getClientDescription())) {
-                    client = c;
-                    break;
-                }
+    /**
+     * Wait until the bridge has received the first device list from the adb server
+     *
+     * @param deadline deadline of the wait
+     */
+    private void waitForInitialDeviceList(Deadline deadline) throws ArtInjectException {
+        while (!mAndroidDebugBridge.hasInitialDeviceList()) {
+            if (deadline.isExpired()) {
+                checkDeadline(deadline, "wait for the device list");
             }
             try {
-                TimeUnit.MILLISECONDS.sleep(200);
+                TimeUnit.MILLISECONDS.sleep(Math.min(200, deadline.remaining()));
             } catch (InterruptedException e) {
-
+                System.out.println("[ErrorCode]: " + ErrorCodes.CANT_FIND_DEVICE);
+                throw new ArtInjectException(ErrorCodes.CANT_FIND_DEVICE, "Interrupted waiting for the device list");
             }
         }
-        return client;
     }
 
-    private String pushFileIntoDevice(IDevice device, String packageName, File localFile)
-            throws Exception {
-        String filename = localFile.getName();
-        String remoteDir = "/data/data/" + packageName + "/";
-        String remotePath = remoteDir + filename;
+    public IDevice findDevice(String serial, long timeout) throws ArtInjectException {
+        return findDevice(serial, Deadline.after(timeout));
+    }
 
-        device.pushFile(localFile.getAbsolutePath(), "/data/local/tmp/" + filename);
+    /**
+     * Wait for the device, the wait finishes as soon as the device is connected
+     *
+     * @param serial   device's serial, null for first device
+     * @param deadline deadline
+     * @return device, null on timeout
+     */
+    public IDevice findDevice(String serial, Deadline deadline) throws ArtInjectException {
+        ensureAndroidDebugBridge(deadline);
+        CompletableFuture<IDevice> future = new CompletableFuture<>();
+        AndroidDebugBridge.IDeviceChangeListener listener = new AndroidDebugBridge.IDeviceChangeListener() {
+            @Override
+            public void deviceConnected(IDevice device) {
+                matchDevice(future, device, serial);
+            }
 
-        //adbShell(device, new String[]{"run-as", packageName, "mkdir", remoteDir});
-        String[] cmd =
-                new String[]{
-                        "run-as", packageName, "cp", "/data/local/tmp/" + filename, remotePath
-                };
-        String out = adbShell(device, cmd);
-        if (out.trim().length() > 0) {
-            System.out.println("[Warning] " + packageName + " package is not debuggable, try push file again as root");
-            adbShell(device, new String[]{"setenforce", "0"}, true);
-            out = adbShell(device, new String[]{"cp", "/data/local/tmp/" + filename, remotePath}, true);
-            if (out.trim().length() > 0) {
-                throw new Exception(out.trim()); // error
+            @Override
+            public void deviceDisconnected(IDevice device) {
             }
-            adbShell(device, new String[]{"chmod", "777", remotePath}, true);
-        }
 
-        System.out.println(
-                "[Success] pushed file into device, local file: "
-                        + localFile.getAbsolutePath()
-                        + ", remote file: "
-                        + remotePath);
-        return remotePath;
+            @Override
+            public void deviceChanged(IDevice device, int changeMask) {
+                matchDevice(future, device, serial);
+            }
+        };
+        AndroidDebugBridge.addDeviceChangeListener(listener);
+        try {
+            // the device may be connected before the listener is added
+            if (mAndroidDebugBridge.hasInitialDeviceList()) {
+                for (IDevice device : mAndroidDebugBridge.getDevices()) {
+                    matchDevice(future, device, serial);
+                }
+            }
+            return deadline.await(future);
+        } finally {
+            AndroidDebugBridge.removeDeviceChangeListener(listener);
+        }
     }
 
+    private static void matchDevice(CompletableFuture<IDevice> future, IDevice device, String serial) {
+        if (serial == null || serial.equals(device.getSerialNumber())) {
+            future.complete(device);
+        }
+    }
 
     public void dispose() {
         AndroidDebugBridge.disconnectBridge();
         AndroidDebugBridge.terminate();
+        DebugPortAllocator.getInstance().release();
     }
 
     public String getAppAbi(String serial, String packageName, long timeout) throws ArtInjectException {
-        IDevice device = getDevice(serial, timeout);
-        Client client = findClient(device, packageName, timeout);
-        if (client == null) {
-            System.out.println("[ErrorCode]: " + ErrorCodes.CANT_GET_CLIENT);
-            throw new ArtInjectException(
-                    "Can not get client, make sure this application is debuggable and is running, packageName="
-                            + packageName);
-        }
-        return client.getClientData().getAbi();
+        Deadline deadline = Deadline.after(timeout);
+        AdbDevice device = getAdbDevice(serial, deadline);
+        return getAppProcess(device, packageName, deadline).getAbi();
     }
 
 
-    private boolean checkAbi(IDevice device, String appAbi, List<String> soRemotePaths) {
+    private boolean checkAbi(AdbDevice device, String appAbi, List<String> soRemotePaths) {
         for (String soRemotePath : soRemotePaths) {
             String checkResult = adbShell(device, new String[]{"file " + soRemotePath});
             int soAbiIndex = checkResult.indexOf("bit");
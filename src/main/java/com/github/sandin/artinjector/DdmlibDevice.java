@@ -0,0 +1,145 @@
+package com.github.sandin.artinjector;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device of ddmlib, the JDWP connections are forwarded by the client monitor of ddmlib
+ */
+public class DdmlibDevice implements AdbDevice {
+    private final IDevice mDevice;
+
+    public DdmlibDevice(IDevice device) {
+        mDevice = device;
+    }
+
+    public IDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public String getSerialNumber() {
+        return mDevice.getSerialNumber();
+    }
+
+    @Override
+    public String getProperty(String name) {
+        return mDevice.getProperty(name);
+    }
+
+    @Override
+    public String executeShellCommand(String command, long timeoutSeconds) {
+        CountDownLatch latch = new CountDownLatch(1);
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver(latch);
+        try {
+            mDevice.executeShellCommand(command, receiver, timeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return null;
+        }
+
+        try {
+            latch.await(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        return receiver.getOutput();
+    }
+
+    /**
+     * Wait for the client of the app, the wait finishes as soon as the app name is known by ddmlib
+     */
+    @Override
+    public AppProcess findApp(String packageName, Deadline deadline) {
+        Client client = findClient(packageName, deadline);
+        if (client == null) {
+            return null;
+        }
+        return new AppProcess(
+                client.getClientData().getPackageName(),
+                client.getClientData().getPid(),
+                client.getClientData().getAbi(),
+                client.getDebuggerListenPort());
+    }
+
+    private Client findClient(String packageName, Deadline deadline) {
+        CompletableFuture<Client> future = new CompletableFuture<>();
+        AndroidDebugBridge.IClientChangeListener clientListener = (client, changeMask) -> {
+            if (client.getDevice() == mDevice) {
+                matchClient(future, client, packageName);
+            }
+        };
+        AndroidDebugBridge.IDeviceChangeListener deviceListener = new AndroidDebugBridge.IDeviceChangeListener() {
+            @Override
+            public void deviceConnected(IDevice d) {
+            }
+
+            @Override
+            public void deviceDisconnected(IDevice d) {
+            }
+
+            @Override
+            public void deviceChanged(IDevice d, int changeMask) {
+                if (d == mDevice && (changeMask & IDevice.CHANGE_CLIENT_LIST) != 0) {
+                    for (Client client : mDevice.getClients()) {
+                        matchClient(future, client, packageName);
+                    }
+                }
+            }
+        };
+        AndroidDebugBridge.addClientChangeListener(clientListener);
+        AndroidDebugBridge.addDeviceChangeListener(deviceListener);
+        try {
+            // the client may be known before the listeners are added
+            Client client = mDevice.getClient(packageName);
+            if (client != null) {
+                return client;
+            }
+            for (Client c : mDevice.getClients()) {
+                matchClient(future, c, packageName);
+            }
+
+            client = deadline.await(future);
+            if (client == null) {
+                for (Client c : mDevice.getClients()) {
+                    System.out.println(
+                            "[Success] debuggable app, packageName: "
+                                    + c.getClientData().getPackageName()
+                                    + ", debugger port: "
+                                    + c.getDebuggerListenPort());
+                }
+            }
+            return client;
+        } finally {
+            AndroidDebugBridge.removeClientChangeListener(clientListener);
+            AndroidDebugBridge.removeDeviceChangeListener(deviceListener);
+        }
+    }
+
+    private static void matchClient(CompletableFuture<Client> future, Client client, String packageName) {
+        if (packageName.equals(client.getClientData().getClientDescription())) {
+            future.complete(client);
+        }
+    }
+
+    @Override
+    public int forwardJdwp(AppProcess app) {
+        return app.getDebuggerPort();
+    }
+
+    @Override
+    public void removeJdwpForward(int port) {
+        // owned by ddmlib
+    }
+
+    @Override
+    public String toString() {
+        return mDevice.getSerialNumber();
+    }
+}
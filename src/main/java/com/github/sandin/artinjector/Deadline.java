@@ -0,0 +1,195 @@
+package com.github.sandin.artinjector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A point in time shared by all the waits of one operation
+ * <p>
+ * A deadline can be cancelled, then it is expired at once and the waits registered with
+ * {@link #onCancel(Runnable)} are woken up, the operation stops at its next check. A blocking
+ * read which can not check the deadline is woken up by closing its stream, see {@link #watch(Closeable)}.
+ */
+public class Deadline {
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "artinjector-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long mDeadlineNanos;
+    private final boolean mInfinite;
+    private volatile boolean mCancelled = false;
+    private final List<Runnable> mCancelListeners = new CopyOnWriteArrayList<>();
+
+    private Deadline(long deadlineNanos, boolean infinite) {
+        mDeadlineNanos = deadlineNanos;
+        mInfinite = infinite;
+    }
+
+    /**
+     * @param timeout timeout in milliseconds
+     * @return deadline which expires after the timeout
+     */
+    public static Deadline after(long timeout) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout), false);
+    }
+
+    /**
+     * @return deadline which expires only if it is cancelled
+     */
+    public static Deadline never() {
+        return new Deadline(0, true);
+    }
+
+    /**
+     * @return remaining milliseconds, 0 if expired
+     */
+    public long remaining() {
+        if (mCancelled) {
+            return 0;
+        }
+        if (mInfinite) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * @param timeout timeout of one wait in milliseconds
+     * @return the timeout, but no more than the remaining milliseconds and at least 1
+     */
+    public int bound(int timeout) {
+        return (int) Math.max(1, Math.min(timeout, remaining()));
+    }
+
+    public boolean isExpired() {
+        return mCancelled || (!mInfinite && mDeadlineNanos - System.nanoTime() <= 0);
+    }
+
+    /**
+     * @param operation eg: push
+     * @throws InterruptedIOException the deadline is cancelled or expired
+     */
+    public void throwIfExpired(String operation) throws InterruptedIOException {
+        if (isExpired()) {
+            throw new InterruptedIOException(operation + (mCancelled ? " is cancelled" : " timeout"));
+        }
+    }
+
+    /**
+     * Expire the deadline now
+     */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        for (Runnable listener : mCancelListeners) {
+            if (mCancelListeners.remove(listener)) { // exactly once, even if it is registered right now
+                listener.run();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Run the listener when the deadline is cancelled, at once if it is already cancelled
+     *
+     * @param listener eg: count down the latch of a wait
+     */
+    public void onCancel(Runnable listener) {
+        mCancelListeners.add(listener);
+        if (mCancelled && mCancelListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Close the resource when the deadline is cancelled or expires, unless the watch is closed first
+     *
+     * @param resource eg: the connection of a blocking read
+     * @return watch, close it once the resource is not used any more
+     */
+    public Watch watch(Closeable resource) {
+        Watch watch = new Watch(resource);
+        if (!mInfinite) {
+            watch.mTimeout = sTimer.schedule(watch.mFire, Math.max(0, mDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        onCancel(watch.mFire);
+        return watch;
+    }
+
+    /**
+     * Wait for the future until the deadline, the future is cancelled with the deadline
+     *
+     * @param future future
+     * @return result of the future, null on timeout, cancellation or failure
+     */
+    public <T> T await(CompletableFuture<T> future) {
+        Runnable listener = () -> future.cancel(false);
+        onCancel(listener);
+        try {
+            return future.get(remaining(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            return null;
+        } finally {
+            mCancelListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @see #watch(Closeable)
+     */
+    public class Watch implements Closeable {
+        private final Closeable mResource;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        private final Runnable mFire = this::fire;
+        private volatile ScheduledFuture<?> mTimeout;
+
+        private Watch(Closeable resource) {
+            mResource = resource;
+        }
+
+        private void fire() {
+            if (mDone.compareAndSet(false, true)) {
+                try {
+                    mResource.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            mDone.set(true);
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+            mCancelListeners.remove(mFire);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remaining=" + (mInfinite ? "infinite" : remaining() + "ms") + (mCancelled ? ", cancelled" : "") + "}";
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.sandin.artinjector;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocator of the ddmlib debug ports, coordinated between the injector processes on the same host
+ * <p>
+ * Each process reserves a block of client debug ports by holding a lock file of the block, the first
+ * block which is tried is derived from the pid so concurrent processes rarely probe the same block.
+ * ddmlib assigns the ports of the block to the debuggable clients of all the devices one by one, so
+ * the block is large enough for a fleet, and a block is used only if all of its ports are free.
+ * The selected debug port is an ephemeral port assigned by the OS. The locks are released when the
+ * process exits, even if it is killed.
+ */
+public class DebugPortAllocator {
+    public static final int DEBUG_PORT_BASE = 9600;
+    public static final int BLOCK_SIZE = 256; // debuggable clients of all devices
+    public static final int MAX_BLOCKS = 64; // up to port 25983, below the ephemeral ports
+
+    private static DebugPortAllocator sInstance;
+
+    private final File mLockDir;
+    private final List<FileChannel> mLockChannels = new ArrayList<>();
+    private int mDebugPortBase = -1;
+    private int mSelectedDebugPort = -1;
+
+    DebugPortAllocator(File lockDir) {
+        mLockDir = lockDir;
+    }
+
+    public static synchronized DebugPortAllocator getInstance() {
+        if (sInstance == null) {
+            sInstance = new DebugPortAllocator(new File(System.getProperty("java.io.tmpdir"), "artinjector-ports"));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Get the first port of the block of client debug ports reserved by this process
+     *
+     * @return debug port base
+     */
+    public synchronized int getDebugPortBase() throws IOException {
+        if (mDebugPortBase == -1) {
+            ensureLockDir();
+            int first = (int) (getPid() % MAX_BLOCKS);
+            for (int i = 0; i < MAX_BLOCKS && mDebugPortBase == -1; i++) {
+                int block = (first + i) % MAX_BLOCKS;
+                int port = DEBUG_PORT_BASE + block * BLOCK_SIZE;
+                if (!tryLock("block-" + block + ".lock")) {
+                    continue; // reserved by another injector
+                }
+                if (!isBlockAvailable(port)) {
+                    continue; // used by another program, keep the lock so no injector tries it again
+                }
+                mDebugPortBase = port;
+            }
+            if (mDebugPortBase == -1) {
+                throw new IOException("No free debug port block, " + MAX_BLOCKS + " injectors are running");
+            }
+        }
+        return mDebugPortBase;
+    }
+
+    /**
+     * Get the port of the selected client
+     *
+     * @return an ephemeral port which is reserved by this process
+     */
+    public synchronized int getSelectedDebugPort() throws IOException {
+        if (mSelectedDebugPort == -1) {
+            ensureLockDir();
+            for (int i = 0; i < MAX_BLOCKS && mSelectedDebugPort == -1; i++) {
+                int port;
+                try (ServerSocket serverSocket = new ServerSocket()) {
+                    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                    port = serverSocket.getLocalPort();
+                }
+                if (tryLock("port-" + port + ".lock")) {
+                    mSelectedDebugPort = port;
+                }
+            }
+            if (mSelectedDebugPort == -1) {
+                throw new IOException("Can not allocate the selected debug port");
+            }
+        }
+        return mSelectedDebugPort;
+    }
+
+    /**
+     * Release the ports reserved by this process
+     */
+    public synchronized void release() {
+        for (FileChannel channel : mLockChannels) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+        mLockChannels.clear();
+        mDebugPortBase = -1;
+        mSelectedDebugPort = -1;
+    }
+
+    private boolean tryLock(String name) throws IOException {
+        FileChannel channel = FileChannel.open(new File(mLockDir, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        mLockChannels.add(channel);
+        return true;
+    }
+
+    private void ensureLockDir() throws IOException {
+        if (!mLockDir.isDirectory() && !mLockDir.mkdirs()) {
+            throw new IOException("Can not create dir: " + mLockDir);
+        }
+    }
+
+    private static boolean isBlockAvailable(int base) {
+        for (int port = base; port < base + BLOCK_SIZE; port++) {
+            try (ServerSocket serverSocket = new ServerSocket()) {
+                serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getPid() {
+        // eg: 12345@hostname
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return System.nanoTime();
+        }
+    }
+}
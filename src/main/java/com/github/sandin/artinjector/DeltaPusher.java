@@ -0,0 +1,267 @@
+package com.github.sandin.artinjector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Block level delta push (rsync-like)
+ * <p>
+ * The remote copy is split into fixed size blocks and the MD5 of each block is calculated on the
+ * device with one shell command. Each block of the local file is looked up in the remote blocks
+ * (at any block index), only the blocks which can not be found are sent, then the file is
+ * reassembled on the device with `dd` and verified before it replaces the remote copy.
+ */
+class DeltaPusher {
+    private static final long MIN_FILE_SIZE = 1024 * 1024;
+    private static final int MIN_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCKS = 512;
+    private static final int REMOTE_FILE_MISSING = 3;
+    // send the whole file if more than half of it has been changed
+    private static final double MAX_CHANGED_RATIO = 0.5;
+
+    private final String mSerial;
+    private final Function<String, String> mAsAppUser;
+    private final boolean mRoot;
+    private Deadline mDeadline = Deadline.never();
+
+    /**
+     * @param serial    device serial
+     * @param asAppUser wrap a shell script to run it as the app user (or root)
+     * @param root      the script runs as root
+     */
+    DeltaPusher(String serial, Function<String, String> asAppUser, boolean root) {
+        mSerial = serial;
+        mAsAppUser = asAppUser;
+        mRoot = root;
+    }
+
+    /**
+     * @param deadline the shell commands are stopped when it expires
+     */
+    void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * Push the changed blocks of a file
+     *
+     * @param payload    payload
+     * @param remotePath remote file path
+     * @return false if the delta mode is not applicable, the caller should push the whole file
+     */
+    boolean push(Payload payload, String remotePath) {
+        long size = payload.getSize();
+        if (size < MIN_FILE_SIZE) {
+            return false;
+        }
+        int blockSize = getBlockSize(size);
+        try {
+            List<String> remoteBlocks = fetchRemoteBlocks(remotePath, blockSize);
+            if (remoteBlocks == null) {
+                System.out.println("[Warning] delta push, remote copy is missing: " + remotePath);
+                return false;
+            }
+            Delta delta;
+            try (InputStream in = payload.open()) {
+                delta = diff(in, remoteBlocks, blockSize);
+            }
+            StringBuilder script = new StringBuilder();
+            script.append("set -e\n{\n");
+            for (Copy copy : delta.copies) {
+                appendCopy(script, remotePath, copy, blockSize);
+            }
+            int blocks = delta.blocks;
+            int changedBlocks = delta.changedBlocks;
+
+            if (delta.data.size() > size * MAX_CHANGED_RATIO) {
+                System.out.println("[Warning] delta push, too many changes (" + changedBlocks + "/" + blocks + " blocks), fallback to full push: " + payload);
+                return false;
+            }
+
+            String newPath = remotePath + ".new";
+            script.append("} > ").append(newPath).append("\n");
+            script.append("[ \"$(stat -c %s ").append(newPath).append(")\" = \"").append(size).append("\" ]\n");
+            script.append("set -- $(md5sum ").append(newPath).append(")\n");
+            script.append("[ \"$1\" = \"").append(delta.md5).append("\" ]\n");
+            script.append("mv ").append(newPath).append(" ").append(remotePath).append("\n");
+            if (mRoot) {
+                script.append("chmod 777 ").append(remotePath).append("\n");
+            }
+
+            // upload the script, then upload the delta and run the script
+            String deltaPath = remotePath + ".delta";
+            String scriptPath = remotePath + ".delta.sh";
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int exitCode = AdbConnection.execShellV2(mSerial, mAsAppUser.apply("cat > " + scriptPath),
+                    new ByteArrayInputStream(script.toString().getBytes(StandardCharsets.UTF_8)), out, mDeadline);
+            if (exitCode == 0) {
+                exitCode = AdbConnection.execShellV2(mSerial,
+                        mAsAppUser.apply("cat > " + deltaPath + " && sh " + scriptPath + "; r=$?; rm -f " + deltaPath + " " + scriptPath + " " + newPath + "; exit $r"),
+                        new ByteArrayInputStream(delta.data.toByteArray()), out, mDeadline);
+            }
+            if (exitCode != 0) {
+                System.out.println("[Warning] delta push fail, file: " + payload + ", exit code: " + exitCode + ", output: " + out.toString().trim());
+                return false;
+            }
+            System.out.println("[Success] delta push, file: " + payload + ", sent " + delta.data.size() + " of " + size + " bytes, "
+                    + changedBlocks + "/" + blocks + " blocks changed");
+            return true;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("[Warning] delta push fail, file: " + payload + ", error: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Match the blocks of the local file against the blocks of the remote copy
+     *
+     * @param in           local file
+     * @param remoteBlocks MD5 of each remote block
+     * @param blockSize    block size
+     * @return the copies which reassemble the local file from the remote copy and the delta
+     */
+    static Delta diff(InputStream in, List<String> remoteBlocks, int blockSize) throws IOException, NoSuchAlgorithmException {
+        Map<String, Integer> remoteBlockIndexes = new HashMap<>();
+        for (int i = 0; i < remoteBlocks.size(); i++) {
+            remoteBlockIndexes.putIfAbsent(remoteBlocks.get(i), i);
+        }
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest fileMd5 = MessageDigest.getInstance("MD5");
+        Delta delta = new Delta();
+        int runSource = -1;
+        int runStart = 0;
+        int runCount = 0;
+        byte[] buffer = new byte[blockSize];
+        int read;
+        while ((read = readBlock(in, buffer)) > 0) {
+            delta.blocks++;
+            md5.update(buffer, 0, read);
+            fileMd5.update(buffer, 0, read);
+            Integer remoteIndex = remoteBlockIndexes.get(Utils.toHex(md5.digest()));
+            int source;
+            int index;
+            if (remoteIndex != null) {
+                source = Copy.SOURCE_REMOTE;
+                index = remoteIndex;
+            } else {
+                source = Copy.SOURCE_DELTA;
+                index = delta.changedBlocks++;
+                delta.data.write(buffer, 0, read);
+            }
+            if (source == runSource && index == runStart + runCount) {
+                runCount++;
+            } else {
+                if (runCount > 0) {
+                    delta.copies.add(new Copy(runSource, runStart, runCount));
+                }
+                runSource = source;
+                runStart = index;
+                runCount = 1;
+            }
+        }
+        if (runCount > 0) {
+            delta.copies.add(new Copy(runSource, runStart, runCount));
+        }
+        delta.md5 = Utils.toHex(fileMd5.digest());
+        return delta;
+    }
+
+    private static int getBlockSize(long size) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (size / blockSize > MAX_BLOCKS) {
+            blockSize *= 2;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Calculate the MD5 of each block of the remote file with one shell command
+     *
+     * @param remotePath remote file path
+     * @param blockSize  block size
+     * @return MD5 of each block, null if the remote file does not exist
+     */
+    private List<String> fetchRemoteBlocks(String remotePath, int blockSize) throws IOException {
+        String script = "f=" + remotePath + "; [ -f $f ] || exit " + REMOTE_FILE_MISSING + "; "
+                + "n=$((($(stat -c %s $f)+" + blockSize + "-1)/" + blockSize + ")); i=0; "
+                + "while [ $i -lt $n ]; do dd if=$f bs=" + blockSize + " skip=$i count=1 2>/dev/null | md5sum; i=$((i+1)); done";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int exitCode = AdbConnection.execShellV2(mSerial, mAsAppUser.apply(script), null, out, mDeadline);
+        if (exitCode == REMOTE_FILE_MISSING) {
+            return null;
+        }
+        if (exitCode != 0) {
+            throw new IOException("can not calculate block checksums, exit code: " + exitCode + ", output: " + out.toString().trim());
+        }
+
+        List<String> blocks = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length > 0 && fields[0].length() == 32) {
+                blocks.add(fields[0].toLowerCase());
+            }
+        }
+        return blocks;
+    }
+
+    private static void appendCopy(StringBuilder script, String remotePath, Copy copy, int blockSize) {
+        String input = copy.source == Copy.SOURCE_REMOTE ? remotePath : remotePath + ".delta";
+        script.append("dd if=").append(input)
+                .append(" bs=").append(blockSize)
+                .append(" skip=").append(copy.start)
+                .append(" count=").append(copy.count)
+                .append(" 2>/dev/null\n");
+    }
+
+    /**
+     * A run of consecutive blocks of the remote copy or of the delta
+     */
+    static class Copy {
+        static final int SOURCE_REMOTE = 0;
+        static final int SOURCE_DELTA = 1;
+
+        final int source;
+        final int start; // block index in the source
+        final int count;
+
+        Copy(int source, int start, int count) {
+            this.source = source;
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Result of {@link #diff(InputStream, List, int)}
+     */
+    static class Delta {
+        final List<Copy> copies = new ArrayList<>();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(); // the blocks which are not in the remote copy
+        int blocks = 0;
+        int changedBlocks = 0;
+        String md5; // of the local file
+    }
+
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,363 @@
+package com.github.sandin.artinjector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the library files extracted from apk files
+ * <p>
+ * Each entry is a directory named by (apk SHA-256, abi dir), the total size of the cache is
+ * bounded by evicting the least recently used entries. All operations on the cache directory
+ * are serialized with a lock file, so the cache can be shared by several processes. The files of
+ * an entry are used through a {@link Lease}, which holds a shared lock on the lease file of the
+ * entry, an entry is evicted only if no process holds its lease.
+ */
+public class ExtractionCache {
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String LOCK_FILE = ".lock";
+    // the marker of a complete entry, contains `<sha256> <name>` of each file, its mtime is the last access time
+    private static final String INDEX_FILE = ".index";
+    private static final String TMP_PREFIX = ".tmp-";
+    // locked shared by the processes which use the entry, locked exclusively to evict it
+    private static final String LEASE_FILE = ".lease";
+
+    // FileChannel locks are held by the whole process, threads are serialized with this lock
+    private static final Object sProcessLock = new Object();
+    // leases held by this process, the lease file is locked once per process, guarded by sProcessLock
+    private static final Map<File, EntryLease> sLeases = new HashMap<>();
+    // the threads which miss the same entry wait for the first one instead of extracting it again
+    private static final Map<File, Object> sExtractLocks = new ConcurrentHashMap<>();
+
+    private final File mCacheDir;
+    private final long mMaxSize;
+
+    public ExtractionCache(File cacheDir, long maxSize) {
+        mCacheDir = cacheDir;
+        mMaxSize = maxSize;
+    }
+
+    public static File getDefaultCacheDir() {
+        return new File(System.getProperty("user.home"), ".artinjector" + File.separator + "extract-cache");
+    }
+
+    /**
+     * Get the library files of the abi in the apk, extract them on cache miss, an entry with a
+     * missing file is extracted again and replaced
+     *
+     * @param apk     apk payload
+     * @param abiDir  eg: arm64-v8a
+     * @param entries library entries of the abi in the apk
+     * @return lease of the cached library files, the files are kept until it is closed
+     */
+    public Lease get(Payload apk, String abiDir, List<Payload> entries) throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("Can not create cache dir: " + mCacheDir);
+        }
+        File entryDir = new File(mCacheDir, apk.getDigest() + "-" + abiDir);
+        synchronized (sExtractLocks.computeIfAbsent(entryDir, key -> new Object())) {
+            return getOrExtract(entryDir, entries);
+        }
+    }
+
+    private Lease getOrExtract(File entryDir, List<Payload> entries) throws IOException {
+        Lease cached = lookup(entryDir);
+        if (cached != null) {
+            System.out.println("[Success] extraction cache hit: " + entryDir);
+            return cached;
+        }
+
+        // extract outside of the lock, then publish the entry atomically
+        File tmpDir = new File(mCacheDir, TMP_PREFIX + UUID.randomUUID());
+        if (!tmpDir.mkdirs()) {
+            throw new IOException("Can not create dir: " + tmpDir);
+        }
+        boolean published = false;
+        try {
+            StringBuilder index = new StringBuilder();
+            for (Payload entry : entries) {
+                File file = new File(tmpDir, entry.getName());
+                try (InputStream in = entry.open(); OutputStream out = new FileOutputStream(file)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                index.append(entry.getDigest()).append(' ').append(entry.getName()).append('\n');
+                System.out.println("[Success] extract library file " + entry + " to " + file);
+            }
+            Files.write(new File(tmpDir, INDEX_FILE).toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+
+            synchronized (sProcessLock) {
+                try (FileLock ignored = lock()) {
+                    if (readIndex(entryDir) == null) {
+                        if (isInUse(entryDir)) {
+                            // an incomplete entry which is still used by someone, use the extracted files once
+                            System.out.println("[Warning] extraction cache entry is incomplete and in use: " + entryDir);
+                            published = true;
+                            return new Lease(null, readIndex(tmpDir), tmpDir);
+                        }
+                        deleteRecursively(entryDir); // missing or incomplete entry
+                        Files.move(tmpDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    cached = acquire(entryDir);
+                    evict();
+                }
+            }
+        } finally {
+            if (!published) {
+                deleteRecursively(tmpDir);
+            }
+        }
+
+        if (cached == null) {
+            throw new IOException("Can not cache the extracted files in " + entryDir);
+        }
+        return cached;
+    }
+
+    private Lease lookup(File entryDir) throws IOException {
+        synchronized (sProcessLock) {
+            try (FileLock ignored = lock()) {
+                return acquire(entryDir);
+            }
+        }
+    }
+
+    /**
+     * Take a lease of a complete entry, the caller holds the cache lock
+     *
+     * @return null if the entry is missing or incomplete
+     */
+    private static Lease acquire(File entryDir) throws IOException {
+        List<Payload> payloads = readIndex(entryDir);
+        if (payloads == null) {
+            return null;
+        }
+        EntryLease entryLease = sLeases.get(entryDir);
+        if (entryLease == null) {
+            // the evictions hold the cache lock too, the shared lock is always granted
+            FileChannel channel = new RandomAccessFile(new File(entryDir, LEASE_FILE), "rw").getChannel();
+            try {
+                entryLease = new EntryLease(new ChannelFileLock(channel, channel.lock(0, Long.MAX_VALUE, true)));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            sLeases.put(entryDir, entryLease);
+        }
+        entryLease.mCount++;
+        new File(entryDir, INDEX_FILE).setLastModified(System.currentTimeMillis());
+        return new Lease(entryDir, payloads, null);
+    }
+
+    private static void release(File entryDir) {
+        synchronized (sProcessLock) {
+            EntryLease entryLease = sLeases.get(entryDir);
+            if (entryLease != null && --entryLease.mCount == 0) {
+                sLeases.remove(entryDir);
+                try {
+                    entryLease.mLock.release();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return files of a complete entry, null if the index or any file is missing
+     */
+    private static List<Payload> readIndex(File entryDir) throws IOException {
+        File indexFile = new File(entryDir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        List<Payload> payloads = new ArrayList<>();
+        for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ", 2);
+            if (fields.length != 2) {
+                continue;
+            }
+            File file = new File(entryDir, fields[1]);
+            if (!file.exists()) {
+                return null;
+            }
+            payloads.add(Payload.of(file, fields[0]));
+        }
+        return payloads;
+    }
+
+    /**
+     * Check whether a process holds the lease of an entry, the caller holds the cache lock
+     */
+    private static boolean isInUse(File entryDir) {
+        if (sLeases.containsKey(entryDir)) {
+            return true;
+        }
+        File leaseFile = new File(entryDir, LEASE_FILE);
+        if (!leaseFile.exists()) {
+            return false;
+        }
+        try (FileChannel channel = new RandomAccessFile(leaseFile, "rw").getChannel()) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (IOException | OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits in the max size, the entries
+     * which are in use by any process are kept
+     */
+    private void evict() {
+        File[] entryDirs = mCacheDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith(TMP_PREFIX));
+        if (entryDirs == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File entryDir : entryDirs) {
+            totalSize += sizeOf(entryDir);
+        }
+        Arrays.sort(entryDirs, Comparator.comparingLong(entryDir -> new File(entryDir, INDEX_FILE).lastModified()));
+        for (File entryDir : entryDirs) {
+            if (totalSize <= mMaxSize) {
+                break;
+            }
+            if (isInUse(entryDir)) {
+                continue;
+            }
+            long size = sizeOf(entryDir);
+            deleteRecursively(entryDir);
+            totalSize -= size;
+            System.out.println("[Success] extraction cache evict: " + entryDir);
+        }
+    }
+
+    private FileLock lock() throws IOException {
+        FileChannel channel = new RandomAccessFile(new File(mCacheDir, LOCK_FILE), "rw").getChannel();
+        try {
+            return new ChannelFileLock(channel, channel.lock());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Files of an entry, the entry is not evicted until the lease is closed
+     */
+    public static class Lease implements Closeable {
+        private final File mEntryDir; // null if the files are not cached
+        private final List<Payload> mPayloads;
+        private final File mTmpDir; // uncached files, deleted on close
+        private boolean mClosed = false;
+
+        private Lease(File entryDir, List<Payload> payloads, File tmpDir) {
+            mEntryDir = entryDir;
+            mPayloads = payloads;
+            mTmpDir = tmpDir;
+        }
+
+        public List<Payload> getPayloads() {
+            return mPayloads;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mEntryDir != null) {
+                release(mEntryDir);
+            }
+            if (mTmpDir != null) {
+                deleteRecursively(mTmpDir);
+            }
+        }
+    }
+
+    /**
+     * Shared lock of the lease file of an entry, counted by the leases of this process
+     */
+    private static class EntryLease {
+        private final FileLock mLock;
+        private int mCount = 0;
+
+        EntryLease(FileLock lock) {
+            mLock = lock;
+        }
+    }
+
+    /**
+     * File lock which also closes its channel on release
+     */
+    private static class ChannelFileLock extends FileLock {
+        private final FileLock mLock;
+
+        ChannelFileLock(FileChannel channel, FileLock lock) {
+            super(channel, lock.position(), lock.size(), lock.isShared());
+            mLock = lock;
+        }
+
+        @Override
+        public boolean isValid() {
+            return mLock.isValid();
+        }
+
+        @Override
+        public void release() throws IOException {
+            try {
+                mLock.release();
+            } finally {
+                channel().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.github.sandin.artinjector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Push a set of files into the app data dir
+ * <p>
+ * In streaming mode, the bytes of each file are piped straight into `/data/data/<pkg>/` through
+ * `run-as <pkg> sh -c 'cat > path'` (or `su`) over the shell protocol v2, so every file is written
+ * only once on the device.
+ * <p>
+ * Otherwise (or if streaming is not possible), all files are transferred to `/data/local/tmp/` over
+ * one sync session (or a bounded pool of parallel sync sessions), then they are placed into
+ * `/data/data/<pkg>/` with one shell round trip.
+ */
+public class FilePusher {
+    private static final String TMP_DIR = "/data/local/tmp/";
+
+    private final AdbDevice mDevice;
+    private final String mPackageName;
+    private int mParallelism = 1;
+    private boolean mStreaming = true;
+    private boolean mDelta = false;
+    private TransferCompressor.Mode mCompression = TransferCompressor.Mode.AUTO;
+    private String mWriter = null;
+    private boolean mWriterProbed = false;
+    private Boolean mGzipSupported = null;
+    private ShellSession mShellSession = null;
+    private Deadline mDeadline = Deadline.never();
+
+    public FilePusher(AdbDevice device, String packageName) {
+        mDevice = device;
+        mPackageName = packageName;
+    }
+
+    /**
+     * Set the max number of parallel sync sessions
+     *
+     * @param parallelism number of sync sessions
+     */
+    public void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Enable/disable the streaming mode
+     *
+     * @param streaming stream files straight into the app data dir
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * Enable/disable the delta mode, only the changed blocks of large files will be sent
+     *
+     * @param delta delta push
+     */
+    public void setDelta(boolean delta) {
+        mDelta = delta;
+    }
+
+    /**
+     * Set the compression mode of the streaming push
+     *
+     * @param compression compression mode
+     */
+    public void setCompression(TransferCompressor.Mode compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Run the shell commands in a session which is already started as the app user (or root)
+     *
+     * @param shellSession shell session, null for spawning a shell for each command
+     */
+    public void setShellSession(ShellSession shellSession) {
+        mShellSession = shellSession;
+    }
+
+    /**
+     * Stop the push when the deadline expires, the blocked transfers are woken up by closing their connections
+     *
+     * @param deadline deadline of the push
+     */
+    public void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
+    public static String getRemoteDir(String packageName) {
+        return "/data/data/" + packageName + "/";
+    }
+
+    public static String getRemotePath(String packageName, String name) {
+        return getRemoteDir(packageName) + name;
+    }
+
+    /**
+     * Push files into the app data dir
+     *
+     * @param payloads payloads
+     * @return remote file paths
+     */
+    public List<String> push(List<Payload> payloads) throws Exception {
+        List<String> remotePaths = new ArrayList<>();
+        if (payloads.isEmpty()) {
+            return remotePaths;
+        }
+        long startTime = System.currentTimeMillis();
+        List<Payload> remainingPayloads = payloads;
+        if (mDelta) {
+            remainingPayloads = deltaIntoAppDir(remainingPayloads);
+        }
+        if (mStreaming) {
+            remainingPayloads = streamIntoAppDir(remainingPayloads);
+        }
+        if (!remainingPayloads.isEmpty()) {
+            syncToTmpDir(remainingPayloads);
+            placeIntoAppDir(remainingPayloads);
+        }
+        for (Payload payload : payloads) {
+            String remotePath = getRemotePath(mPackageName, payload.getName());
+            remotePaths.add(remotePath);
+            System.out.println(
+                    "[Success] pushed file into device, local file: "
+                            + payload
+                            + ", remote file: "
+                            + remotePath);
+        }
+        System.out.println("[Success] pushed " + payloads.size() + " files in " + (System.currentTimeMillis() - startTime) + "ms");
+        return remotePaths;
+    }
+
+    /**
+     * Send only the changed blocks of the large files which already have a remote copy
+     *
+     * @param payloads payloads
+     * @return the payloads which can not be pushed with delta mode
+     */
+    private List<Payload> deltaIntoAppDir(List<Payload> payloads) throws Exception {
+        String writer = getStreamingWriter();
+        if (writer == null) {
+            System.out.println("[Warning] delta push is not supported, fallback to full push");
+            return payloads;
+        }
+
+        DeltaPusher deltaPusher = new DeltaPusher(mDevice.getSerialNumber(), script -> asAppUser(writer, script), writer.equals("su"));
+        deltaPusher.setDeadline(mDeadline);
+        List<Payload> failedPayloads = Collections.synchronizedList(new ArrayList<>());
+        runInSessions(payloads, group -> {
+            for (Payload payload : group) {
+                mDeadline.throwIfExpired("delta push");
+                if (!deltaPusher.push(payload, getRemotePath(mPackageName, payload.getName()))) {
+                    failedPayloads.add(payload);
+                }
+            }
+        });
+        return failedPayloads;
+    }
+
+    /**
+     * Stream files straight into the app data dir
+     *
+     * @param payloads payloads
+     * @return the payloads which can not be streamed
+     */
+    private List<Payload> streamIntoAppDir(List<Payload> payloads) throws Exception {
+        String writer = getStreamingWriter();
+        if (writer == null) {
+            System.out.println("[Warning] streaming push is not supported, fallback to push files via " + TMP_DIR);
+            return payloads;
+        }
+
+        TransferCompressor compressor = new TransferCompressor(mDevice.getSerialNumber(), mCompression);
+        AtomicLong savedBytes = new AtomicLong();
+        List<Payload> failedPayloads = Collections.synchronizedList(new ArrayList<>());
+        runInSessions(payloads, group -> {
+            for (Payload payload : group) {
+                mDeadline.throwIfExpired("streaming push");
+                String remotePath = getRemotePath(mPackageName, payload.getName());
+                boolean compress = compressor.shouldCompress(payload) && isGzipSupported();
+                String script = (compress ? "gzip -dc > " : "cat > ") + remotePath;
+                if (writer.equals("su")) {
+                    script += " && chmod 777 " + remotePath;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int exitCode;
+                long startTime = System.currentTimeMillis();
+                long wireBytes;
+                try {
+                    if (compress) {
+                        try (TransferCompressor.GzipInputStream in = TransferCompressor.openGzipStream(payload)) {
+                            exitCode = AdbConnection.execShellV2(mDevice.getSerialNumber(), asAppUser(writer, script), in, out, mDeadline);
+                            wireBytes = in.getOutputBytes();
+                        }
+                    } else {
+                        try (InputStream in = payload.open()) {
+                            exitCode = AdbConnection.execShellV2(mDevice.getSerialNumber(), asAppUser(writer, script), in, out, mDeadline);
+                            wireBytes = payload.getSize();
+                        }
+                    }
+                } catch (IOException e) {
+                    mDeadline.throwIfExpired("streaming push");
+                    System.out.println("[Warning] streaming push fail, file: " + payload + ", error: " + e);
+                    failedPayloads.add(payload);
+                    continue;
+                }
+                if (exitCode != 0) {
+                    System.out.println("[Warning] streaming push fail, file: " + payload + ", exit code: " + exitCode + ", output: " + out.toString().trim());
+                    failedPayloads.add(payload);
+                    continue;
+                }
+                compressor.recordTransfer(wireBytes, System.currentTimeMillis() - startTime);
+                if (compress) {
+                    savedBytes.addAndGet(payload.getSize() - wireBytes);
+                    System.out.println("[Success] compressed push, file: " + payload + ", sent " + wireBytes + " of " + payload.getSize() + " bytes");
+                }
+            }
+        });
+        if (savedBytes.get() != 0) {
+            System.out.println("[Success] compressed push saved " + savedBytes.get() + " bytes");
+        }
+        return failedPayloads;
+    }
+
+    /**
+     * Find out how to write into the app data dir with the shell protocol v2
+     *
+     * @return `run-as <pkg>`, `su` or null if streaming is not possible
+     */
+    private synchronized String getStreamingWriter() {
+        if (!mWriterProbed) {
+            mWriter = probeStreamingWriter();
+            mWriterProbed = true;
+        }
+        return mWriter;
+    }
+
+    private String probeStreamingWriter() {
+        String serial = mDevice.getSerialNumber();
+        try {
+            if (!AdbConnection.getFeatures(serial).contains("shell_v2")) {
+                return null;
+            }
+            String runAs = "run-as " + mPackageName;
+            if (mShellSession != null) {
+                // the session already knows who can write the app data dir
+                return mShellSession.isRoot() ? "su" : runAs;
+            }
+            if (AdbConnection.execShellV2(serial, runAs + " true", null, null, mDeadline) == 0) {
+                return runAs;
+            }
+            System.out.println("[Warning] " + mPackageName + " package is not debuggable, try streaming push as root");
+            if (AdbConnection.execShellV2(serial, "su -c 'setenforce 0 2>/dev/null; true'", null, null, mDeadline) == 0) {
+                return "su";
+            }
+        } catch (IOException e) {
+            System.out.println("[Warning] can not use shell protocol v2: " + e);
+        }
+        return null;
+    }
+
+    private synchronized boolean isGzipSupported() {
+        if (mGzipSupported == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                AdbConnection.execShellV2(mDevice.getSerialNumber(), "echo ok | gzip -c | gzip -dc", null, out, mDeadline);
+            } catch (IOException ignore) {
+            }
+            mGzipSupported = out.toString().trim().equals("ok");
+            if (!mGzipSupported) {
+                System.out.println("[Warning] gzip is not available on the device, disable compressed push");
+            }
+        }
+        return mGzipSupported;
+    }
+
+    /**
+     * Wrap a shell script so that it runs as the app user (or root)
+     *
+     * @param writer `run-as <pkg>` or `su`
+     * @param script shell script, must not contain single quote
+     * @return shell command
+     */
+    private static String asAppUser(String writer, String script) {
+        if (writer.equals("su")) {
+            return "su -c '" + script + "'";
+        }
+        return writer + " sh -c '" + script + "'";
+    }
+
+    private void syncToTmpDir(List<Payload> payloads) throws Exception {
+        runInSessions(payloads, this::syncFiles);
+    }
+
+    /**
+     * Run the task in a bounded pool of sessions, the files are balanced by size
+     *
+     * @param payloads payloads
+     * @param task       task for each session
+     */
+    private void runInSessions(List<Payload> payloads, SessionTask task) throws Exception {
+        int sessions = Math.min(mParallelism, payloads.size());
+        if (sessions <= 1) {
+            task.run(payloads);
+            return;
+        }
+
+        // balance the sessions by size, the largest file goes to the least loaded session first
+        List<Payload> sortedPayloads = new ArrayList<>(payloads);
+        sortedPayloads.sort(Comparator.comparingLong(Payload::getSize).reversed());
+        List<List<Payload>> groups = new ArrayList<>();
+        long[] groupSizes = new long[sessions];
+        for (int i = 0; i < sessions; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (Payload payload : sortedPayloads) {
+            int min = 0;
+            for (int i = 1; i < sessions; i++) {
+                if (groupSizes[i] < groupSizes[min]) {
+                    min = i;
+                }
+            }
+            groups.get(min).add(payload);
+            groupSizes[min] += payload.getSize();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (List<Payload> group : groups) {
+                futures.add(executor.submit(() -> {
+                    task.run(group);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void syncFiles(List<Payload> payloads) throws Exception {
+        mDeadline.throwIfExpired("sync push");
+        try (AdbConnection syncConnection = AdbConnection.openSync(mDevice.getSerialNumber());
+             Deadline.Watch ignored = mDeadline.watch(syncConnection)) {
+            for (Payload payload : payloads) {
+                mDeadline.throwIfExpired("sync push");
+                try (InputStream in = payload.open()) {
+                    syncConnection.syncPush(in, TMP_DIR + payload.getName(), 0644);
+                }
+            }
+        } catch (IOException e) {
+            // the connection is closed by the deadline
+            mDeadline.throwIfExpired("sync push");
+            throw e;
+        }
+    }
+
+    private void placeIntoAppDir(List<Payload> payloads) throws Exception {
+        StringBuilder copyCommand = new StringBuilder();
+        StringBuilder remotePaths = new StringBuilder();
+        for (Payload payload : payloads) {
+            if (copyCommand.length() > 0) {
+                copyCommand.append(" && ");
+            }
+            String remotePath = getRemotePath(mPackageName, payload.getName());
+            copyCommand.append("cp ").append(TMP_DIR).append(payload.getName()).append(" ").append(remotePath);
+            remotePaths.append(" ").append(remotePath);
+        }
+
+        if (mShellSession != null) {
+            String command = copyCommand + (mShellSession.isRoot() ? " && chmod 777" + remotePaths : "");
+            ShellSession.Result result = mShellSession.execute(command, 30 * 1000);
+            if (!result.isSuccess()) {
+                throw new Exception(result.getOutput().trim());
+            }
+            return;
+        }
+
+        long timeoutSeconds = Math.max(1, mDeadline.bound(30 * 1000) / 1000);
+        String out = ArtInjector.adbShell(mDevice, new String[]{"run-as", mPackageName, "sh", "-c", "'" + copyCommand + "'"}, false, timeoutSeconds);
+        if (out == null || out.trim().length() > 0) {
+            System.out.println("[Warning] " + mPackageName + " package is not debuggable, try push file again as root");
+            out = ArtInjector.adbShell(mDevice, new String[]{"setenforce 0 2>/dev/null; " + copyCommand + " && chmod 777" + remotePaths}, true, timeoutSeconds);
+            if (out == null || out.trim().length() > 0) {
+                throw new Exception(out != null ? out.trim() : "adb shell fail"); // error
+            }
+        }
+    }
+
+    private interface SessionTask {
+        void run(List<Payload> payloads) throws Exception;
+    }
+}
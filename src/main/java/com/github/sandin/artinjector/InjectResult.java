@@ -0,0 +1,145 @@
+package com.github.sandin.artinjector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the injection into one device
+ */
+public class InjectResult {
+    public static final String PHASE_LAUNCH = "launch";
+    public static final String PHASE_DISCOVER = "discover";
+    public static final String PHASE_PUSH = "push";
+    public static final String PHASE_ATTACH = "attach";
+    public static final String PHASE_INJECT = "inject";
+
+    private static final String[] PHASES = {PHASE_LAUNCH, PHASE_DISCOVER, PHASE_PUSH, PHASE_ATTACH, PHASE_INJECT};
+
+    private String mSerial;
+    private final Map<String, Long> mPhaseTimes = new LinkedHashMap<>();
+    private boolean mSuccess = false;
+    private Integer mErrorCode = null;
+    private String mError = null;
+    private long mTotalTime = 0;
+
+    public InjectResult(String serial) {
+        mSerial = serial;
+    }
+
+    public String getSerial() {
+        return mSerial;
+    }
+
+    void setSerial(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * Record the time of a phase
+     *
+     * @param phase     eg: {@link #PHASE_PUSH}
+     * @param startTime start time of the phase in milliseconds
+     */
+    void endPhase(String phase, long startTime) {
+        mPhaseTimes.put(phase, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * @return milliseconds of each finished phase
+     */
+    public Map<String, Long> getPhaseTimes() {
+        return mPhaseTimes;
+    }
+
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+    void setSuccess() {
+        mSuccess = true;
+        mErrorCode = null;
+        mError = null;
+    }
+
+    /**
+     * @return one of {@link ErrorCodes}, null if succeeded or unknown
+     */
+    public Integer getErrorCode() {
+        return mErrorCode;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    void setError(Integer errorCode, String error) {
+        mSuccess = false;
+        mErrorCode = errorCode;
+        mError = error;
+    }
+
+    public long getTotalTime() {
+        return mTotalTime;
+    }
+
+    void setTotalTime(long totalTime) {
+        mTotalTime = totalTime;
+    }
+
+    @Override
+    public String toString() {
+        return "InjectResult{serial=" + mSerial + ", success=" + mSuccess + ", errorCode=" + mErrorCode
+                + ", error=" + mError + ", phases=" + mPhaseTimes + ", total=" + mTotalTime + "ms}";
+    }
+
+    /**
+     * Format the results as a table, one row per device
+     *
+     * @param results results
+     * @return table
+     */
+    public static String formatTable(List<InjectResult> results) {
+        List<String[]> rows = new ArrayList<>();
+        String[] header = new String[PHASES.length + 4];
+        header[0] = "serial";
+        header[1] = "status";
+        header[2] = "error";
+        System.arraycopy(PHASES, 0, header, 3, PHASES.length);
+        header[header.length - 1] = "total";
+        rows.add(header);
+        for (InjectResult result : results) {
+            String[] row = new String[header.length];
+            row[0] = String.valueOf(result.getSerial());
+            row[1] = result.isSuccess() ? "OK" : "FAIL";
+            row[2] = result.getErrorCode() != null ? String.valueOf(result.getErrorCode()) : "-";
+            for (int i = 0; i < PHASES.length; i++) {
+                Long time = result.getPhaseTimes().get(PHASES[i]);
+                row[3 + i] = time != null ? time + "ms" : "-";
+            }
+            row[row.length - 1] = result.getTotalTime() + "ms";
+            rows.add(row);
+        }
+
+        int[] widths = new int[header.length];
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                widths[i] = Math.max(widths[i], row[i].length());
+            }
+        }
+        StringBuilder table = new StringBuilder();
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                table.append(String.format("%-" + (widths[i] + 2) + "s", row[i]));
+            }
+            table.append('\n');
+        }
+        for (InjectResult result : results) {
+            if (result.getError() != null) {
+                table.append(result.getSerial()).append(": ").append(result.getError()).append('\n');
+            }
+        }
+        return table.toString();
+    }
+}
@@ -0,0 +1,532 @@
+package com.github.sandin.artinjector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Queue of inject jobs for device farms
+ * <p>
+ * The jobs of a device run in the order of their priority, jobs of the same priority run in the
+ * order of submission (FIFO). At most {@link #setMaxJobsPerDevice} jobs run on a device and at
+ * most {@link #setMaxJobs} jobs run on this host at the same time, so a device never gets two
+ * JDWP attaches at once and a hub is not flooded with pushes. A job without a serial may pick any
+ * device, so it does not run beside the jobs of any device. Jobs which fail with a transient
+ * error are retried with exponential backoff. The queue is journaled to a file, the jobs which
+ * are pending (or running) when the process stops are resumed on the next start. Each job keeps
+ * the command line which configures its injector, and its output goes to the stream of the
+ * thread which submitted it.
+ */
+public class InjectScheduler {
+    public static final int DEFAULT_MAX_JOBS = 8;
+    public static final int DEFAULT_MAX_JOBS_PER_DEVICE = 1;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BACKOFF = 2000;
+
+    // errors which may go away on retry, eg: the device is rebooting or the app is restarting
+    private static final Set<Integer> TRANSIENT_ERROR_CODES = new HashSet<>(Arrays.asList(
+            ErrorCodes.CANT_FIND_DEVICE,
+            ErrorCodes.CANT_GET_CLIENT,
+            ErrorCodes.CANT_PUSH_FILE,
+            ErrorCodes.CANT_ATTACH_APP,
+            ErrorCodes.CANT_GET_ADB,
+            ErrorCodes.INJECT_TIMEOUT));
+
+    // device key of the jobs without a serial
+    private static final String ANY_DEVICE = "";
+
+    private static final Comparator<Job> JOB_ORDER = (a, b) -> a.mPriority != b.mPriority
+            ? Integer.compare(b.mPriority, a.mPriority)
+            : Long.compare(a.mId, b.mId);
+
+    private final ArtInjector mArtInjector;
+    private final File mJournalFile;
+    private final Object mLock = new Object();
+    private final Map<String, PriorityQueue<Job>> mPendingJobs = new HashMap<>(); // key: serial
+    private final Map<String, Integer> mRunningJobs = new HashMap<>(); // key: serial
+    private final Map<Long, Job> mJobs = new HashMap<>(); // pending and running jobs, key: id
+    private int mMaxJobs = DEFAULT_MAX_JOBS;
+    private int mMaxJobsPerDevice = DEFAULT_MAX_JOBS_PER_DEVICE;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mBackoff = DEFAULT_BACKOFF;
+    private Function<String[], ArtInjector> mInjectorFactory = null;
+    private long mNextId = 1;
+    private int mRunningCount = 0;
+    private long mStartedCount = 0;
+    private long mTotalWaitTime = 0;
+    private long mMaxWaitTime = 0;
+    private ExecutorService mExecutor;
+    private Thread mDispatcher;
+
+    /**
+     * Job of the queue
+     */
+    public static class Job {
+        private long mId;
+        private final String mSerial;
+        private final String mPackageName;
+        private final File[] mFiles;
+        private final String mBreakPoints;
+        private final long mTimeout;
+        private final int mPriority;
+        private final String[] mArgs;
+        private ArtInjector mArtInjector = null; // created from the args on the first attempt
+        private OutputStream mOutput = null; // stream of the submitter, not journaled
+        private int mAttempts = 0;
+        private long mEnqueueTime;
+        private long mReadyTime;
+        private final CompletableFuture<InjectResult> mFuture = new CompletableFuture<>();
+
+        /**
+         * @param serial      device's serial, null for first device
+         * @param packageName package name of application
+         * @param files       so or apk files
+         * @param breakPoints breakpoints, null for the default breakpoints
+         * @param timeout     wait timeout of one attempt
+         * @param priority    jobs with a higher priority run first
+         * @param args        command line of the job which configures its injector, null to use the
+         *                    injector of the scheduler
+         */
+        public Job(String serial, String packageName, File[] files, String breakPoints, long timeout, int priority, String[] args) {
+            mSerial = serial;
+            mPackageName = packageName;
+            mFiles = files;
+            mBreakPoints = breakPoints;
+            mTimeout = timeout;
+            mPriority = priority;
+            mArgs = args;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getSerial() {
+            return mSerial;
+        }
+
+        /**
+         * @return the result of the last attempt, completes when the job is done
+         */
+        public CompletableFuture<InjectResult> getFuture() {
+            return mFuture;
+        }
+
+        private String getDeviceKey() {
+            return mSerial != null ? mSerial : ANY_DEVICE;
+        }
+
+        private String toJournalLine() {
+            List<String> paths = new ArrayList<>();
+            for (File file : mFiles) {
+                paths.add(file.getAbsolutePath());
+            }
+            return mId + "\t" + mPriority + "\t" + mAttempts + "\t" + mEnqueueTime + "\t" + mTimeout
+                    + "\t" + (mSerial != null ? mSerial : "") + "\t" + mPackageName
+                    + "\t" + (mBreakPoints != null ? mBreakPoints : "") + "\t" + String.join(",", paths)
+                    + "\t" + encodeArgs(mArgs);
+        }
+
+        private static Job fromJournalLine(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 10) {
+                return null;
+            }
+            String[] paths = fields[8].split(",");
+            File[] files = new File[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                files[i] = new File(paths[i]);
+            }
+            Job job = new Job(
+                    fields[5].isEmpty() ? null : fields[5],
+                    fields[6],
+                    files,
+                    fields[7].isEmpty() ? null : fields[7],
+                    Long.parseLong(fields[4]),
+                    Integer.parseInt(fields[1]),
+                    decodeArgs(fields[9]));
+            job.mId = Long.parseLong(fields[0]);
+            job.mAttempts = Integer.parseInt(fields[2]);
+            job.mEnqueueTime = Long.parseLong(fields[3]);
+            return job;
+        }
+
+        /**
+         * @return each url encoded arg followed by `,`, `-` for null
+         */
+        private static String encodeArgs(String[] args) {
+            if (args == null) {
+                return "-";
+            }
+            StringBuilder encoded = new StringBuilder();
+            try {
+                for (String arg : args) {
+                    encoded.append(URLEncoder.encode(arg, "UTF-8")).append(',');
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return encoded.toString();
+        }
+
+        private static String[] decodeArgs(String field) {
+            if (field.equals("-")) {
+                return null;
+            }
+            String[] encoded = field.split(",", -1);
+            String[] args = new String[encoded.length - 1]; // the last one is after the last `,`
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = URLDecoder.decode(encoded[i], "UTF-8");
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return args;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + mId + "(serial=" + mSerial + ", packageName=" + mPackageName + ", priority=" + mPriority + ")";
+        }
+    }
+
+    /**
+     * @param artInjector injector which runs the jobs
+     * @param journalFile file which persists the queue, null to keep the queue in memory only, the
+     *                    jobs in the file are resumed
+     */
+    public InjectScheduler(ArtInjector artInjector, File journalFile) {
+        mArtInjector = artInjector;
+        mJournalFile = journalFile;
+        try {
+            for (Job job : loadJournal()) {
+                mNextId = Math.max(mNextId, job.mId + 1);
+                job.mReadyTime = System.currentTimeMillis();
+                enqueue(job);
+                System.out.println("[Success] scheduler resumed job " + job);
+            }
+        } catch (IOException e) {
+            System.out.println("[Warning] scheduler can not load journal " + journalFile + ", error: " + e);
+        }
+    }
+
+    /**
+     * Set the max number of jobs which run on this host at the same time
+     */
+    public void setMaxJobs(int maxJobs) {
+        mMaxJobs = Math.max(1, maxJobs);
+    }
+
+    /**
+     * Set the max number of jobs which run on one device at the same time
+     */
+    public void setMaxJobsPerDevice(int maxJobsPerDevice) {
+        mMaxJobsPerDevice = Math.max(1, maxJobsPerDevice);
+    }
+
+    /**
+     * Set the max number of attempts of a job which fails with a transient error
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Set the delay before the first retry, the delay doubles on each retry
+     */
+    public void setBackoff(long backoff) {
+        mBackoff = backoff;
+    }
+
+    /**
+     * Set the factory of the injectors of the jobs which have a command line
+     *
+     * @param injectorFactory creates an injector from the command line of a job
+     */
+    public void setInjectorFactory(Function<String[], ArtInjector> injectorFactory) {
+        mInjectorFactory = injectorFactory;
+    }
+
+    /**
+     * Start dispatching
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mDispatcher != null) {
+                return;
+            }
+            mExecutor = Executors.newFixedThreadPool(mMaxJobs, runnable -> {
+                Thread thread = new Thread(runnable, "artinjector-job");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mDispatcher = new Thread(this::dispatch, "artinjector-scheduler");
+            mDispatcher.setDaemon(true);
+            mDispatcher.start();
+        }
+    }
+
+    /**
+     * Stop dispatching, the pending jobs stay in the journal
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            if (mDispatcher == null) {
+                return;
+            }
+            mDispatcher.interrupt();
+            mDispatcher = null;
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Add a job to the queue, the output of the job goes to the stream of the current thread
+     *
+     * @param job job
+     * @return the job, use {@link Job#getFuture()} to wait for the result
+     */
+    public Job submit(Job job) {
+        job.mOutput = ThreadOutputStream.getRoute();
+        synchronized (mLock) {
+            job.mId = mNextId++;
+            job.mEnqueueTime = System.currentTimeMillis();
+            job.mReadyTime = job.mEnqueueTime;
+            enqueue(job);
+            saveJournal();
+            System.out.println("[Success] scheduler queued job " + job + ", " + formatMetrics());
+            mLock.notifyAll();
+        }
+        return job;
+    }
+
+    private void enqueue(Job job) {
+        mJobs.put(job.mId, job);
+        mPendingJobs.computeIfAbsent(job.getDeviceKey(), key -> new PriorityQueue<>(JOB_ORDER)).add(job);
+    }
+
+    private void dispatch() {
+        synchronized (mLock) {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                Job next = null;
+                long nextReadyTime = Long.MAX_VALUE;
+                if (mRunningCount < mMaxJobs) {
+                    for (Map.Entry<String, PriorityQueue<Job>> entry : mPendingJobs.entrySet()) {
+                        if (getRunningJobs(entry.getKey()) >= mMaxJobsPerDevice) {
+                            continue;
+                        }
+                        // a job which backs off does not hold back the other jobs of the device
+                        for (Job job : entry.getValue()) {
+                            if (job.mReadyTime > now) {
+                                nextReadyTime = Math.min(nextReadyTime, job.mReadyTime);
+                            } else if (next == null || JOB_ORDER.compare(job, next) < 0) {
+                                next = job;
+                            }
+                        }
+                    }
+                }
+
+                if (next == null) {
+                    try {
+                        mLock.wait(nextReadyTime == Long.MAX_VALUE ? 0 : nextReadyTime - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                Job job = next;
+                mPendingJobs.get(job.getDeviceKey()).remove(job);
+                mRunningJobs.merge(job.getDeviceKey(), 1, Integer::sum);
+                mRunningCount++;
+                long waitTime = now - job.mReadyTime;
+                mStartedCount++;
+                mTotalWaitTime += waitTime;
+                mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+                System.out.println("[Success] scheduler start job " + job + ", waited " + waitTime + "ms, " + formatMetrics());
+                mExecutor.execute(() -> runJob(job));
+            }
+        }
+    }
+
+    /**
+     * A job without a serial runs on any device, so it conflicts with the jobs of every device
+     *
+     * @param deviceKey device key of a job
+     * @return number of the running jobs which may use the device
+     */
+    private int getRunningJobs(String deviceKey) {
+        int anyDeviceJobs = mRunningJobs.getOrDefault(ANY_DEVICE, 0);
+        if (!deviceKey.equals(ANY_DEVICE)) {
+            return mRunningJobs.getOrDefault(deviceKey, 0) + anyDeviceJobs;
+        }
+        int maxDeviceJobs = 0;
+        for (Map.Entry<String, Integer> entry : mRunningJobs.entrySet()) {
+            if (!entry.getKey().equals(ANY_DEVICE)) {
+                maxDeviceJobs = Math.max(maxDeviceJobs, entry.getValue());
+            }
+        }
+        return anyDeviceJobs + maxDeviceJobs;
+    }
+
+    private void runJob(Job job) {
+        OutputStream output = ThreadOutputStream.getRoute();
+        ThreadOutputStream.route(job.mOutput);
+        InjectResult result;
+        try {
+            result = getArtInjector(job).injectDevice(job.mSerial, job.mPackageName, job.mFiles, job.mBreakPoints, job.mTimeout);
+        } finally {
+            ThreadOutputStream.route(output);
+        }
+        boolean done = true;
+        synchronized (mLock) {
+            mRunningCount--;
+            mRunningJobs.merge(job.getDeviceKey(), -1, Integer::sum);
+            job.mAttempts++;
+            if (!result.isSuccess()
+                    && TRANSIENT_ERROR_CODES.contains(result.getErrorCode())
+                    && job.mAttempts < mMaxAttempts) {
+                long backoff = mBackoff << (job.mAttempts - 1);
+                job.mReadyTime = System.currentTimeMillis() + backoff;
+                mPendingJobs.computeIfAbsent(job.getDeviceKey(), key -> new PriorityQueue<>(JOB_ORDER)).add(job);
+                System.out.println("[Warning] scheduler retry job " + job + " in " + backoff + "ms, attempt "
+                        + job.mAttempts + ", errorCode: " + result.getErrorCode());
+                done = false;
+            } else {
+                mJobs.remove(job.mId);
+                System.out.println("[Success] scheduler finished job " + job + ", success: " + result.isSuccess()
+                        + ", attempts: " + job.mAttempts + ", " + formatMetrics());
+            }
+            saveJournal();
+            mLock.notifyAll();
+        }
+        if (done) {
+            job.mFuture.complete(result);
+        }
+    }
+
+    private ArtInjector getArtInjector(Job job) {
+        if (job.mArgs == null || mInjectorFactory == null) {
+            return mArtInjector;
+        }
+        if (job.mArtInjector == null) {
+            job.mArtInjector = mInjectorFactory.apply(job.mArgs);
+        }
+        return job.mArtInjector;
+    }
+
+    /**
+     * @return number of jobs which wait to run
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            int depth = 0;
+            for (PriorityQueue<Job> jobs : mPendingJobs.values()) {
+                depth += jobs.size();
+            }
+            return depth;
+        }
+    }
+
+    /**
+     * @param serial device's serial, null for the jobs of the first device
+     * @return number of jobs which wait to run on the device
+     */
+    public int getQueueDepth(String serial) {
+        synchronized (mLock) {
+            PriorityQueue<Job> jobs = mPendingJobs.get(serial != null ? serial : "");
+            return jobs != null ? jobs.size() : 0;
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (mLock) {
+            return mRunningCount;
+        }
+    }
+
+    /**
+     * @return average milliseconds between a job (or its retry) being ready and it starting to run
+     */
+    public long getAverageWaitTime() {
+        synchronized (mLock) {
+            return mStartedCount > 0 ? mTotalWaitTime / mStartedCount : 0;
+        }
+    }
+
+    public long getMaxWaitTime() {
+        synchronized (mLock) {
+            return mMaxWaitTime;
+        }
+    }
+
+    /**
+     * @return queue depth, running jobs and wait times in one line
+     */
+    public String formatMetrics() {
+        return "queue depth: " + getQueueDepth()
+                + ", running: " + getRunningCount()
+                + ", wait avg: " + getAverageWaitTime() + "ms"
+                + ", wait max: " + getMaxWaitTime() + "ms";
+    }
+
+    private List<Job> loadJournal() throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (mJournalFile == null || !mJournalFile.exists()) {
+            return jobs;
+        }
+        for (String line : Files.readAllLines(mJournalFile.toPath(), StandardCharsets.UTF_8)) {
+            Job job = line.isEmpty() ? null : Job.fromJournalLine(line);
+            if (job == null) {
+                System.out.println("[Warning] scheduler skip invalid journal line: " + line);
+                continue;
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private void saveJournal() {
+        if (mJournalFile == null) {
+            return;
+        }
+        List<Job> jobs = new ArrayList<>(mJobs.values());
+        jobs.sort(Comparator.comparingLong(job -> job.mId));
+        StringBuilder journal = new StringBuilder();
+        for (Job job : jobs) {
+            journal.append(job.toJournalLine()).append('\n');
+        }
+        File tmpFile = new File(mJournalFile.getPath() + ".tmp");
+        try {
+            File dir = mJournalFile.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can not create dir: " + dir);
+            }
+            Files.write(tmpFile.toPath(), journal.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), mJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("[Warning] scheduler can not save journal " + mJournalFile + ", error: " + e);
+        }
+    }
+}
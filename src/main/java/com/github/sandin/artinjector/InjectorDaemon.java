@@ -0,0 +1,213 @@
+package com.github.sandin.artinjector;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import org.apache.commons.cli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running injector which keeps the adb bridge (and the device/client lists) warm
+ * <p>
+ * Jobs are submitted over a loopback TCP connection: the client sends the token of the daemon, then
+ * the command line arguments, one per line, terminated by an empty line. The output of the job is
+ * streamed back line by line, the last line is `[DaemonExit] <exit code>`.
+ * <p>
+ * The token is a random string which the daemon writes to a file only readable by the user
+ * (`~/.artinjector/daemon-<port>.token`), so the other users of the host can not submit jobs.
+ */
+public class InjectorDaemon {
+    public static final int DEFAULT_PORT = 9595;
+
+    private static final String EXIT_PREFIX = "[DaemonExit] ";
+    private static final int CONNECT_TIMEOUT = 500;
+    private static final int AUTH_TIMEOUT = 5000;
+
+    private final ArtInjector mArtInjector;
+    private final int mPort;
+    private final AtomicInteger mJobIds = new AtomicInteger();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private InjectScheduler mScheduler = null;
+    private byte[] mToken = null;
+
+    /**
+     * @param artInjector injector which owns the adb bridge
+     * @param port        loopback port
+     */
+    public InjectorDaemon(ArtInjector artInjector, int port) {
+        mArtInjector = artInjector;
+        mPort = port;
+    }
+
+    /**
+     * Queue the inject jobs instead of running them at once
+     *
+     * @param scheduler queue which runs each job with an injector configured by the command line of the job
+     */
+    public void setScheduler(InjectScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Connect to the adb server and serve the jobs until the process is killed
+     */
+    public void serve() throws IOException {
+        AndroidDebugBridge bridge;
+        try {
+            bridge = mArtInjector.connect();
+        } catch (ArtInjectException e) {
+            throw new IOException("Can not connect to adb", e);
+        }
+        // a new token for every daemon, the token of the previous daemon is replaced
+        String token = TokenFile.newToken();
+        TokenFile.write(getTokenFile(mPort), token);
+        System.out.println("[Success] daemon token is written to " + getTokenFile(mPort));
+        mToken = token.getBytes(StandardCharsets.UTF_8);
+        ThreadOutputStream.install();
+        if (mScheduler != null) {
+            mScheduler.setInjectorFactory(args -> createJobInjector(App.parseArgs(args), bridge));
+            mScheduler.start();
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort));
+            System.out.println("[Success] daemon is listening on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                mExecutor.execute(() -> runJob(socket, bridge));
+            }
+        }
+    }
+
+    private void runJob(Socket socket, AndroidDebugBridge bridge) {
+        int jobId = mJobIds.incrementAndGet();
+        try (Socket ignored = socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            socket.setSoTimeout(AUTH_TIMEOUT);
+            String token = reader.readLine();
+            if (token == null || !MessageDigest.isEqual(mToken, token.getBytes(StandardCharsets.UTF_8))) {
+                System.out.println("[Warning] daemon job #" + jobId + " rejected, invalid token from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            List<String> args = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+            socket.setSoTimeout(0);
+            System.out.println("[Success] daemon job #" + jobId + " start: " + args);
+            long startTime = System.currentTimeMillis();
+
+            OutputStream out = socket.getOutputStream();
+            int exitCode;
+            ThreadOutputStream.route(out);
+            try {
+                exitCode = runJob(args.toArray(new String[0]), bridge);
+            } finally {
+                ThreadOutputStream.route(null);
+            }
+
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(EXIT_PREFIX + exitCode + "\n");
+            writer.flush();
+            System.out.println("[Success] daemon job #" + jobId + " done, exit code: " + exitCode
+                    + ", cost: " + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (IOException e) {
+            System.out.println("[Warning] daemon job #" + jobId + " fail, error: " + e);
+        }
+    }
+
+    private int runJob(String[] args, AndroidDebugBridge bridge) {
+        CommandLine cl = App.parseArgs(args);
+        if (cl == null || cl.hasOption("daemon")) {
+            return -1;
+        }
+        ArtInjector artInjector = createJobInjector(cl, bridge);
+        try {
+            if (mScheduler != null) {
+                return App.schedule(mScheduler, artInjector, cl, args);
+            }
+            return App.run(artInjector, cl);
+        } catch (Throwable e) {
+            System.err.println("[Error] ErrorInfo: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @param cl     command line of the job, null if invalid
+     * @param bridge adb bridge of the daemon
+     * @return injector configured by the options of the job
+     */
+    private ArtInjector createJobInjector(CommandLine cl, AndroidDebugBridge bridge) {
+        ArtInjector artInjector = new ArtInjector();
+        artInjector.setAndroidDebugBridge(bridge);
+        artInjector.setBackend(mArtInjector.getBackend()); // a job may select another backend
+        artInjector.setExitOnTimeout(false);
+        if (cl != null) {
+            App.configure(artInjector, cl);
+        }
+        return artInjector;
+    }
+
+    /**
+     * Submit a job to the daemon and print its output
+     *
+     * @param port loopback port of the daemon
+     * @param args command line arguments of the job
+     * @return exit code of the job
+     * @throws IOException the daemon is not running, or it is not started by this user
+     */
+    public static int submit(int port, String[] args) throws IOException {
+        String token = TokenFile.read(getTokenFile(port));
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            System.out.println("[Success] submit job to daemon, port=" + port + ", args=" + Arrays.toString(args));
+
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(token + "\n");
+            for (String arg : args) {
+                writer.write(arg + "\n");
+            }
+            writer.write("\n");
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(EXIT_PREFIX)) {
+                    return Integer.parseInt(line.substring(EXIT_PREFIX.length()).trim());
+                }
+                System.out.println(line);
+            }
+        }
+        System.out.println("[ErrorInfo]: daemon closed the connection before the job finished");
+        return -1;
+    }
+
+    /**
+     * @param port loopback port of the daemon
+     * @return eg: ~/.artinjector/daemon-9595.token
+     */
+    private static File getTokenFile(int port) {
+        return TokenFile.get("daemon-" + port + ".token");
+    }
+}
@@ -0,0 +1,286 @@
+package com.github.sandin.artinjector;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.BooleanValue;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.StringReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Write files into the app data dir through the JDWP connection, for the devices which have
+ * neither `run-as` nor `su`
+ * <p>
+ * Each chunk of a file is put into a byte[] in the app, then the app writes it with its own
+ * `FileOutputStream`. The byte[] is a buffer filled with `ArrayReference.setValues`, or, if the app
+ * has a Base64 decoder, the result of decoding the chunk sent as one string, which is an order of
+ * magnitude faster as the debugger does not mirror every byte. The chunk size starts at
+ * {@link #INITIAL_CHUNK_SIZE} and is doubled as long as the measured throughput grows. All the
+ * invocations run on the thread which is suspended by the breakpoint.
+ */
+public class JdwpFileTransfer {
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final ArtDebugger mDebugger;
+    private final ArtDebugger.EvaluateContext mContext;
+    private boolean mDecoderResolved = false;
+    private String mDecoderClassName = null; // android.util.Base64 (static) or java.util.Base64$Decoder
+    private ObjectReference mDecoder = null;
+    private ArrayReference mBuffer = null;
+    private int mChunkSize = INITIAL_CHUNK_SIZE;
+    private double mBestThroughput = 0; // bytes per nanosecond
+    private boolean mTuned = false;
+    private long mTotalBytes = 0;
+    private long mTotalNanos = 0;
+    private Deadline mDeadline = Deadline.never();
+
+    public JdwpFileTransfer(ArtDebugger debugger, ArtDebugger.EvaluateContext context) {
+        mDebugger = debugger;
+        mContext = context;
+    }
+
+    /**
+     * Stop the transfer at the next chunk when the deadline expires, a chunk is never cut in the middle
+     *
+     * @param deadline deadline of the transfer
+     */
+    public void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * Write the files, then release the remote objects of the transfer
+     *
+     * @param payloads    files
+     * @param remotePaths remote path of each file
+     */
+    public void transfer(List<Payload> payloads, List<String> remotePaths) throws IOException {
+        try {
+            for (int i = 0; i < payloads.size(); i++) {
+                transfer(payloads.get(i), remotePaths.get(i));
+            }
+        } finally {
+            if (mBuffer != null) {
+                mDebugger.release(mBuffer);
+                mBuffer = null;
+            }
+            if (mDecoder != null) {
+                mDebugger.release(mDecoder);
+                mDecoder = null;
+            }
+        }
+        System.out.println("[Success] transferred " + mTotalBytes + " bytes over jdwp, " + getThroughput()
+                + "KB/s, chunk size=" + mChunkSize + ", decoder=" + mDecoderClassName);
+    }
+
+    /**
+     * Write one file, the file is made read-only as a dex file must not be writable since Android 14
+     * <p>
+     * The file is written next to the target, then renamed over it, as the read-only file of an
+     * earlier transfer can not be opened for writing.
+     *
+     * @param payload    file
+     * @param remotePath remote path
+     */
+    public void transfer(Payload payload, String remotePath) throws IOException {
+        mDeadline.throwIfExpired("jdwp transfer");
+        resolveDecoder();
+        long startTime = System.nanoTime();
+        String tmpPath = remotePath + ".tmp";
+        ObjectReference tmpFile = newFile(tmpPath);
+        ObjectReference file = null;
+        long size = 0;
+        try {
+            // the read-only leftover of an interrupted transfer
+            evaluate(mDebugger.evaluateMethod(mContext, "delete", "()Z", tmpFile, new Object[0]));
+            ObjectReference output = (ObjectReference) evaluate(mDebugger.evaluateStaticMethod(mContext,
+                    "java.io.FileOutputStream", "<init>", "(Ljava/io/File;)V", new Object[]{tmpFile}));
+            try (InputStream in = payload.open()) {
+                byte[] chunk = new byte[MAX_CHUNK_SIZE];
+                int length;
+                while ((length = readFully(in, chunk, mChunkSize)) > 0) {
+                    mDeadline.throwIfExpired("jdwp transfer");
+                    writeChunk(output, chunk, length);
+                    size += length;
+                }
+            } finally {
+                // an error of close is printed by the debugger, the error of the write is more useful
+                mDebugger.evaluateMethod(mContext, "close", "()V", output, new Object[0]);
+                mDebugger.release(output);
+            }
+            evaluate(mDebugger.evaluateMethod(mContext, "setReadOnly", "()Z", tmpFile, new Object[0]));
+            file = newFile(remotePath);
+            BooleanValue renamed = (BooleanValue) evaluate(mDebugger.evaluateMethod(mContext,
+                    "renameTo", "(Ljava/io/File;)Z", tmpFile, new Object[]{file}));
+            if (!renamed.value()) {
+                throw new IOException("can not rename " + tmpPath + " to " + remotePath);
+            }
+        } finally {
+            mDebugger.release(tmpFile);
+            if (file != null) {
+                mDebugger.release(file);
+            }
+        }
+        System.out.println("[Success] transferred file over jdwp, local file: " + payload
+                + ", remote path: " + remotePath + ", size=" + size + ", " + (System.nanoTime() - startTime) / 1000000 + "ms");
+    }
+
+    /**
+     * @return average throughput in KB/s
+     */
+    public long getThroughput() {
+        return mTotalNanos > 0 ? (long) (mTotalBytes * 1000000000.0 / mTotalNanos / 1024) : 0;
+    }
+
+    /**
+     * Use the Base64 decoder of the app if its class is loaded, no class is loaded for the transfer
+     */
+    private void resolveDecoder() {
+        if (mDecoderResolved) {
+            return;
+        }
+        mDecoderResolved = true;
+        if (mDebugger.getClassType("android.util.Base64") != null) {
+            mDecoderClassName = "android.util.Base64";
+        } else if (mDebugger.getClassType("java.util.Base64") != null) {
+            ArtDebugger.EvaluateResult result = mDebugger.evaluateStaticMethod(mContext,
+                    "java.util.Base64", "getDecoder", "()Ljava/util/Base64$Decoder;", new Object[0]);
+            if (!result.hasError() && result.getResult() instanceof ObjectReference) {
+                mDecoder = (ObjectReference) result.getResult();
+                mDecoderClassName = "java.util.Base64$Decoder";
+            }
+        }
+        if (mDecoderClassName == null) {
+            System.out.println("[Warning] no Base64 decoder in app, fill the buffers byte by byte");
+        }
+    }
+
+    /**
+     * Write a chunk, the chunk size is halved if the VM rejects the command
+     */
+    private void writeChunk(ObjectReference output, byte[] chunk, int length) throws IOException {
+        long startTime = System.nanoTime();
+        int offset = 0;
+        while (offset < length) {
+            int size = Math.min(mChunkSize, length - offset);
+            ArrayReference bytes;
+            try {
+                bytes = mDecoderClassName != null ? decode(chunk, offset, size) : fill(chunk, offset, size);
+            } catch (Exception e) {
+                if (mChunkSize <= MIN_CHUNK_SIZE) {
+                    throw new IOException("can not create remote buffer, chunk size=" + mChunkSize, e);
+                }
+                System.out.println("[Warning] can not create remote buffer, chunk size=" + mChunkSize + ", error: " + e);
+                resize(mChunkSize / 2);
+                mTuned = true;
+                continue;
+            }
+            try {
+                evaluate(mDebugger.evaluateMethod(mContext, "write", "([BII)V", output, new Object[]{bytes, 0, size}));
+            } finally {
+                if (bytes != mBuffer) {
+                    mDebugger.release(bytes);
+                }
+            }
+            offset += size;
+        }
+        long nanos = System.nanoTime() - startTime;
+        mTotalBytes += length;
+        mTotalNanos += nanos;
+        tune(length, nanos);
+    }
+
+    /**
+     * @return decoded byte[] in the app, pinned
+     */
+    private ArrayReference decode(byte[] chunk, int offset, int length) throws IOException {
+        String encoded = Base64.getEncoder().encodeToString(Arrays.copyOfRange(chunk, offset, offset + length));
+        StringReference string = mDebugger.newString(encoded);
+        try {
+            ArtDebugger.EvaluateResult result;
+            if (mDecoder != null) {
+                result = mDebugger.evaluateMethod(mContext, "decode", "(Ljava/lang/String;)[B", mDecoder, new Object[]{string});
+            } else {
+                result = mDebugger.evaluateStaticMethod(mContext, mDecoderClassName, "decode", "(Ljava/lang/String;I)[B",
+                        new Object[]{string, 0}); // Base64.DEFAULT
+            }
+            return (ArrayReference) evaluate(result);
+        } finally {
+            mDebugger.release(string);
+        }
+    }
+
+    /**
+     * @return the reused buffer in the app, filled with the chunk
+     */
+    private ArrayReference fill(byte[] chunk, int offset, int length) throws Exception {
+        if (mBuffer == null) {
+            mBuffer = mDebugger.newByteArray(mChunkSize);
+        }
+        mDebugger.setBytes(mBuffer, chunk, offset, length);
+        return mBuffer;
+    }
+
+    /**
+     * Double the chunk size while the throughput of the full chunks grows, keep the best one after
+     * the first drop
+     */
+    private void tune(int length, long nanos) {
+        if (mTuned || length < mChunkSize) {
+            return;
+        }
+        double throughput = (double) length / nanos;
+        if (throughput > mBestThroughput) {
+            mBestThroughput = throughput;
+            if (mChunkSize < MAX_CHUNK_SIZE) {
+                resize(mChunkSize * 2);
+                return;
+            }
+        } else {
+            resize(mChunkSize / 2);
+        }
+        mTuned = true;
+        System.out.println("[Success] jdwp transfer chunk size=" + mChunkSize + ", " + (long) (mBestThroughput * 1000000000 / 1024) + "KB/s");
+    }
+
+    private void resize(int chunkSize) {
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+        if (mBuffer != null) {
+            mDebugger.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * @return pinned java.io.File in the app
+     */
+    private ObjectReference newFile(String path) throws IOException {
+        return (ObjectReference) evaluate(mDebugger.evaluateStaticMethod(mContext,
+                "java.io.File", "<init>", "(Ljava/lang/String;)V", new Object[]{path}));
+    }
+
+    private static Object evaluate(ArtDebugger.EvaluateResult result) throws IOException {
+        if (result.hasError()) {
+            throw new IOException(result.getError());
+        }
+        return result.getResult();
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
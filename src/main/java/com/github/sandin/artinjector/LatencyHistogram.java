@@ -0,0 +1,69 @@
+package com.github.sandin.artinjector;
+
+/**
+ * Histogram of latencies with power of two millisecond buckets: <1ms, <2ms, <4ms ... >=1024ms
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 12;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mTotalNanos = 0;
+    private long mMaxNanos = 0;
+
+    /**
+     * Record a latency
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        mBuckets[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return average latency in microseconds
+     */
+    public synchronized long getAverageMicros() {
+        return mCount > 0 ? mTotalNanos / mCount / 1000 : 0;
+    }
+
+    /**
+     * @return max latency in microseconds
+     */
+    public synchronized long getMaxMicros() {
+        return mMaxNanos / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(mCount)
+                .append(", avg=").append(getAverageMicros()).append("us")
+                .append(", max=").append(getMaxMicros()).append("us");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mBuckets[i] == 0) {
+                continue;
+            }
+            sb.append(", ");
+            if (i == BUCKET_COUNT - 1) {
+                sb.append(">=").append(1L << (i - 1)).append("ms");
+            } else {
+                sb.append("<").append(1L << i).append("ms");
+            }
+            sb.append(": ").append(mBuckets[i]);
+        }
+        return sb.toString();
+    }
+}
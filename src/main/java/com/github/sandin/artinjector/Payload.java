@@ -0,0 +1,177 @@
+package com.github.sandin.artinjector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A file to push into device, backed by a local file or an entry of a local zip file
+ */
+public abstract class Payload {
+
+    /**
+     * SHA-256 digests, key: {@link #getCacheKey()}
+     */
+    private static final Map<String, String> sDigests = new ConcurrentHashMap<>();
+
+    /**
+     * @return file name on the device
+     */
+    public abstract String getName();
+
+    /**
+     * @return uncompressed size
+     */
+    public abstract long getSize();
+
+    /**
+     * Open the content of this payload
+     *
+     * @return input stream
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * @return the local file which has the same content as this payload, null if there is none
+     */
+    public File getFile() {
+        return null;
+    }
+
+    /**
+     * @return a key which changes whenever the content changes
+     */
+    protected abstract String getCacheKey();
+
+    /**
+     * Get the SHA-256 digest of the content
+     *
+     * @return lower case hex string
+     */
+    public String getDigest() throws IOException {
+        String key = getCacheKey();
+        String digest = sDigests.get(key);
+        if (digest == null) {
+            MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = open()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    sha256.update(buffer, 0, read);
+                }
+            }
+            digest = Utils.toHex(sha256.digest());
+            sDigests.put(key, digest);
+        }
+        return digest;
+    }
+
+    public static Payload of(File file) {
+        return new FilePayload(file);
+    }
+
+    /**
+     * Create a payload of a local file whose digest is already known
+     *
+     * @param file   local file
+     * @param digest SHA-256 digest of the file
+     * @return payload
+     */
+    public static Payload of(File file, String digest) {
+        Payload payload = new FilePayload(file);
+        sDigests.put(payload.getCacheKey(), digest);
+        return payload;
+    }
+
+    public static Payload of(ZipFile zipFile, ZipEntry entry, String name) {
+        return new ZipEntryPayload(zipFile, entry, name);
+    }
+
+    private static class FilePayload extends Payload {
+        private final File mFile;
+
+        FilePayload(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public String getName() {
+            return mFile.getName();
+        }
+
+        @Override
+        public long getSize() {
+            return mFile.length();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        protected String getCacheKey() {
+            return mFile.getAbsolutePath() + ":" + mFile.length() + ":" + mFile.lastModified();
+        }
+
+        @Override
+        public String toString() {
+            return mFile.getAbsolutePath();
+        }
+    }
+
+    private static class ZipEntryPayload extends Payload {
+        private final ZipFile mZipFile;
+        private final ZipEntry mEntry;
+        private final String mName;
+
+        ZipEntryPayload(ZipFile zipFile, ZipEntry entry, String name) {
+            mZipFile = zipFile;
+            mEntry = entry;
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public long getSize() {
+            return mEntry.getSize();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return mZipFile.getInputStream(mEntry);
+        }
+
+        @Override
+        protected String getCacheKey() {
+            File zip = new File(mZipFile.getName());
+            return zip.getAbsolutePath() + ":" + zip.length() + ":" + zip.lastModified() + "!" + mEntry.getName() + ":" + mEntry.getCrc();
+        }
+
+        @Override
+        public String toString() {
+            return mZipFile.getName() + "!/" + mEntry.getName();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.sandin.artinjector;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed push cache
+ * <p>
+ * The SHA-256 digests of the remote files are fetched with one batched `sha256sum` shell command,
+ * a local file only needs to be pushed when its digest differs from the remote copy.
+ */
+public class PushCache {
+
+    private final AdbDevice mDevice;
+    private final String mPackageName;
+    private final Map<String, String> mRemoteDigests = new HashMap<>();
+    private ShellSession mShellSession = null;
+    private Deadline mDeadline = Deadline.never();
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public PushCache(AdbDevice device, String packageName) {
+        mDevice = device;
+        mPackageName = packageName;
+    }
+
+    /**
+     * Run the shell commands in a session which is already started as the app user (or root)
+     *
+     * @param shellSession shell session, null for spawning a shell for each command
+     */
+    public void setShellSession(ShellSession shellSession) {
+        mShellSession = shellSession;
+    }
+
+    /**
+     * @param deadline the digests are not fetched after the deadline, every file is outdated then
+     */
+    public void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * Fetch the digests of all remote files in one shell round trip
+     *
+     * @param remotePaths remote file paths
+     */
+    public void prefetch(List<String> remotePaths) {
+        mRemoteDigests.clear();
+        if (remotePaths.isEmpty()) {
+            return;
+        }
+        String[] cmd = new String[remotePaths.size() + 1];
+        cmd[0] = "sha256sum";
+        for (int i = 0; i < remotePaths.size(); i++) {
+            cmd[i + 1] = remotePaths.get(i);
+        }
+
+        String out = null;
+        if (mShellSession != null) {
+            try {
+                // the exit code is not 0 if some files do not exist
+                out = mShellSession.execute(String.join(" ", cmd), 30 * 1000).getOutput();
+            } catch (IOException e) {
+                System.out.println("[Warning] shell session fail, error: " + e);
+            }
+        }
+        if (out == null && !mDeadline.isExpired()) {
+            long timeoutSeconds = Math.max(1, mDeadline.bound(30 * 1000) / 1000);
+            String[] runAsCmd = new String[cmd.length + 2];
+            runAsCmd[0] = "run-as";
+            runAsCmd[1] = mPackageName;
+            System.arraycopy(cmd, 0, runAsCmd, 2, cmd.length);
+            out = ArtInjector.adbShell(mDevice, runAsCmd, false, timeoutSeconds);
+            if (out != null && out.contains("run-as:")) {
+                // package is not debuggable
+                out = ArtInjector.adbShell(mDevice, cmd, true, timeoutSeconds);
+            }
+        }
+        if (out == null) {
+            return;
+        }
+
+        for (String line : out.split("\n")) {
+            String[] fields = line.trim().split("\\s+", 2);
+            if (fields.length == 2 && fields[0].length() == 64 && fields[0].matches("[0-9a-fA-F]+")) {
+                mRemoteDigests.put(fields[1].trim(), fields[0].toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Check whether the remote file has the same content as the payload
+     *
+     * @param payload    payload
+     * @param remotePath remote file path
+     * @return true if the push can be skipped
+     */
+    public boolean isUpToDate(Payload payload, String remotePath) {
+        String remoteDigest = mRemoteDigests.get(remotePath);
+        boolean hit = false;
+        if (remoteDigest != null) {
+            try {
+                hit = remoteDigest.equals(payload.getDigest());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (hit) {
+            mHits++;
+            System.out.println("[Success] push cache hit, skip push file: " + payload);
+        } else {
+            mMisses++;
+        }
+        return hit;
+    }
+
+    public int getHits() {
+        return mHits;
+    }
+
+    public int getMisses() {
+        return mMisses;
+    }
+
+    public void report() {
+        System.out.println("[Success] push cache, hits=" + mHits + ", misses=" + mMisses);
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.sandin.artinjector;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Long-lived shell of a device which runs pipelined commands
+ * <p>
+ * The shell is started once (optionally as `run-as <pkg>` or `su`) with the raw `exec:` service,
+ * each command is written to its stdin followed by a sentinel which prints the exit status, so the
+ * output of the commands can be demultiplexed from one stream. N commands cost one round trip
+ * instead of N shell (and N `su`) spawns.
+ */
+public class ShellSession implements Closeable {
+    private final AdbConnection mConnection;
+    private final InputStream mInput;
+    private final String mElevation;
+    private final Deadline mDeadline;
+    private final Deadline.Watch mWatch;
+    private final String mToken = UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+    private int mNextId = 0;
+
+    /**
+     * Result of a command
+     */
+    public static class Result {
+        private final int mExitCode;
+        private final String mOutput;
+
+        Result(int exitCode, String output) {
+            mExitCode = exitCode;
+            mOutput = output;
+        }
+
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        /**
+         * @return stdout and stderr
+         */
+        public String getOutput() {
+            return mOutput;
+        }
+
+        public boolean isSuccess() {
+            return mExitCode == 0;
+        }
+    }
+
+    private ShellSession(AdbConnection connection, String elevation, Deadline deadline) {
+        mConnection = connection;
+        mInput = new BufferedInputStream(connection.getInputStream());
+        mElevation = elevation;
+        mDeadline = deadline;
+        mWatch = deadline.watch(connection);
+    }
+
+    /**
+     * Start a shell
+     *
+     * @param serial    device serial
+     * @param elevation `run-as <pkg>`, `su` or null for the shell user
+     * @param timeout   max milliseconds to wait for the shell
+     * @return shell session
+     * @throws IOException the shell can not be started, eg: the package is not debuggable
+     */
+    public static ShellSession open(String serial, String elevation, int timeout) throws IOException {
+        return open(serial, elevation, timeout, Deadline.never());
+    }
+
+    /**
+     * Start a shell, the session is closed when the deadline expires
+     *
+     * @param deadline deadline of all the commands of the session
+     * @see #open(String, String, int)
+     */
+    public static ShellSession open(String serial, String elevation, int timeout, Deadline deadline) throws IOException {
+        deadline.throwIfExpired("shell session");
+        String command = elevation == null ? "sh" : elevation.equals("su") ? "su" : elevation + " sh";
+        AdbConnection connection = AdbConnection.openService(serial, "exec:" + command);
+        ShellSession session = new ShellSession(connection, elevation, deadline);
+        try {
+            Result result = session.execute("id -u", timeout);
+            if (!result.isSuccess() || result.getOutput().trim().isEmpty()) {
+                throw new IOException("Can not start shell `" + command + "`: " + result.getOutput().trim());
+            }
+            return session;
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start a shell which can write the app data dir, as the app user if the package is debuggable,
+     * otherwise as root (with SELinux set to permissive once)
+     *
+     * @param serial      device serial
+     * @param packageName package name
+     * @param deadline    deadline of all the commands of the session
+     * @return shell session, null if neither `run-as` nor `su` is usable
+     */
+    public static ShellSession openAsAppUser(String serial, String packageName, Deadline deadline) {
+        try {
+            return open(serial, "run-as " + packageName, 5000, deadline);
+        } catch (IOException e) {
+            System.out.println("[Warning] can not start shell session as app user: " + e.getMessage());
+        }
+        try {
+            ShellSession session = open(serial, "su", 10000, deadline);
+            session.execute("setenforce 0", 5000);
+            return session;
+        } catch (IOException e) {
+            System.out.println("[Warning] can not start shell session as root: " + e.getMessage());
+        }
+        return null;
+    }
+
+    public boolean isRoot() {
+        return "su".equals(mElevation);
+    }
+
+    /**
+     * Run a command
+     *
+     * @param command shell command, must not read stdin
+     * @param timeout max milliseconds to wait for the output
+     * @return result
+     */
+    public Result execute(String command, int timeout) throws IOException {
+        return executeAll(Collections.singletonList(command), timeout).get(0);
+    }
+
+    /**
+     * Send all commands in one write, then collect their results in order
+     *
+     * @param commands shell commands, must not read stdin
+     * @param timeout  max milliseconds to wait for the output of each command, bounded by the deadline of the session
+     * @return results
+     */
+    public synchronized List<Result> executeAll(List<String> commands, int timeout) throws IOException {
+        mDeadline.throwIfExpired("shell session");
+        int firstId = mNextId;
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            System.out.println("[Success] shell session" + (mElevation != null ? " (" + mElevation + ")" : "") + ": " + command);
+            script.append("{ ").append(command).append("\n} </dev/null 2>&1; printf '\\n")
+                    .append(getSentinel(mNextId++)).append("%d\\n' $?\n");
+        }
+        OutputStream out = mConnection.getOutputStream();
+        out.write(script.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        mConnection.setTimeout(mDeadline.bound(timeout));
+        List<Result> results = new ArrayList<>();
+        try {
+            for (int id = firstId; id < mNextId; id++) {
+                results.add(readResult(getSentinel(id)));
+            }
+        } catch (IOException e) {
+            // the connection is closed by the deadline
+            mDeadline.throwIfExpired("shell session");
+            throw e;
+        }
+        return results;
+    }
+
+    private String getSentinel(int id) {
+        return "__END_" + mToken + "_" + id + "__ ";
+    }
+
+    private Result readResult(String sentinel) throws IOException {
+        InputStream in = mInput;
+        byte[] marker = ("\n" + sentinel).getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < marker.length) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("shell session closed, output: " + output.toString("UTF-8").trim());
+            }
+            if (b == (marker[matched] & 0xFF)) {
+                matched++;
+            } else {
+                output.write(marker, 0, matched);
+                matched = 0;
+                if (b == (marker[0] & 0xFF)) {
+                    matched = 1;
+                } else {
+                    output.write(b);
+                }
+            }
+        }
+        StringBuilder exitCode = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("shell session closed");
+            }
+            exitCode.append((char) b);
+        }
+        return new Result(Integer.parseInt(exitCode.toString().trim()), output.toString("UTF-8"));
+    }
+
+    @Override
+    public void close() {
+        mWatch.close();
+        try {
+            mConnection.getOutputStream().write("exit\n".getBytes(StandardCharsets.US_ASCII));
+            mConnection.getOutputStream().flush();
+        } catch (IOException ignore) {
+        }
+        try {
+            mConnection.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.sandin.artinjector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Output stream which writes to the stream of the current job, or the original stream outside of jobs
+ * <p>
+ * The threads started by a job inherit its stream. A thread which runs the job of another thread,
+ * eg: a pool thread, takes over the stream with {@link #getRoute()} and {@link #route(OutputStream)}.
+ * The lines of a thread can be tagged with a prefix, eg: the serial of the device of a worker.
+ */
+class ThreadOutputStream extends OutputStream {
+    private static final InheritableThreadLocal<OutputStream> sJobOutput = new InheritableThreadLocal<>();
+    private static final InheritableThreadLocal<byte[]> sPrefix = new InheritableThreadLocal<>();
+    private static final ThreadLocal<boolean[]> sLineStart = ThreadLocal.withInitial(() -> new boolean[]{true});
+
+    private final OutputStream mOriginal;
+
+    ThreadOutputStream(OutputStream original) {
+        mOriginal = original;
+    }
+
+    /**
+     * Replace stdout and stderr, the output of the threads without a route is not changed
+     */
+    static synchronized void install() {
+        if (!(System.out instanceof RoutedPrintStream)) {
+            System.setOut(new RoutedPrintStream(new ThreadOutputStream(System.out)));
+            System.setErr(new RoutedPrintStream(new ThreadOutputStream(System.err)));
+        }
+    }
+
+    /**
+     * @param out stream of the job of the current thread, null to write to the original stream
+     */
+    static void route(OutputStream out) {
+        if (out == null) {
+            sJobOutput.remove();
+        } else {
+            sJobOutput.set(out instanceof SynchronizedOutputStream ? out : new SynchronizedOutputStream(out));
+        }
+    }
+
+    /**
+     * @return stream of the job of the current thread, null if the thread has no route
+     */
+    static OutputStream getRoute() {
+        return sJobOutput.get();
+    }
+
+    /**
+     * Tag the lines of the current thread and the threads it starts
+     *
+     * @param prefix eg: `[emulator-5554] `, null to remove the prefix
+     * @return the previous prefix
+     */
+    static String setPrefix(String prefix) {
+        byte[] previous = sPrefix.get();
+        if (prefix == null) {
+            sPrefix.remove();
+        } else {
+            sPrefix.set(prefix.getBytes());
+        }
+        return previous != null ? new String(previous) : null;
+    }
+
+    private OutputStream target() {
+        OutputStream out = sJobOutput.get();
+        return out != null ? out : mOriginal;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        OutputStream out = target();
+        byte[] prefix = sPrefix.get();
+        if (prefix == null) {
+            out.write(b, off, len);
+            return;
+        }
+        // a println is one locked write of the print stream, so the prefix stays with its line
+        boolean[] lineStart = sLineStart.get();
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (lineStart[0]) {
+                out.write(prefix);
+                lineStart[0] = false;
+            }
+            if (b[i] == '\n') {
+                out.write(b, start, i + 1 - start);
+                start = i + 1;
+                lineStart[0] = true;
+            }
+        }
+        out.write(b, start, off + len - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target().flush();
+    }
+
+    private static class RoutedPrintStream extends PrintStream {
+        RoutedPrintStream(OutputStream out) {
+            super(out, true);
+        }
+    }
+
+    /**
+     * The stdout and stderr of a job share one socket
+     */
+    private static class SynchronizedOutputStream extends OutputStream {
+        private final OutputStream mOut;
+
+        SynchronizedOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (mOut) {
+                mOut.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (mOut) {
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mOut) {
+                mOut.flush();
+            }
+        }
+    }
+}
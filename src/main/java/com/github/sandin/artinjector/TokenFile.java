@@ -0,0 +1,79 @@
+package com.github.sandin.artinjector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+
+/**
+ * Random token in a file which is only readable by the user, eg: the token of the daemon or of an agent
+ */
+final class TokenFile {
+    private static final int TOKEN_SIZE = 32;
+
+    private TokenFile() {
+    }
+
+    /**
+     * @param name file name, eg: daemon-9595.token
+     * @return file in `~/.artinjector`
+     */
+    static File get(String name) {
+        return new File(System.getProperty("user.home"), ".artinjector" + File.separator + name);
+    }
+
+    /**
+     * @return new random token
+     */
+    static String newToken() {
+        byte[] random = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes(random);
+        return Utils.toHex(random);
+    }
+
+    /**
+     * Write a token, the file is created with the permissions of the owner only, then moved over the
+     * previous token
+     *
+     * @param tokenFile token file
+     * @param token     token
+     */
+    static void write(File tokenFile, String token) throws IOException {
+        File dir = tokenFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create dir: " + dir);
+        }
+        File tmpFile = new File(dir, tokenFile.getName() + ".tmp");
+        Files.deleteIfExists(tmpFile.toPath());
+        try {
+            Files.createFile(tmpFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a posix file system, eg: windows
+            Files.createFile(tmpFile.toPath());
+            if (!(tmpFile.setReadable(false, false) && tmpFile.setReadable(true, true)
+                    && tmpFile.setWritable(false, false) && tmpFile.setWritable(true, true))) {
+                System.out.println("[Warning] can not restrict the permissions of the token: " + tmpFile);
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Token file is created by another process: " + tmpFile, e);
+        }
+        Files.write(tmpFile.toPath(), token.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param tokenFile token file
+     * @return token
+     * @throws IOException no token
+     */
+    static String read(File tokenFile) throws IOException {
+        if (!tokenFile.isFile()) {
+            throw new IOException("no token: " + tokenFile);
+        }
+        return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+    }
+}
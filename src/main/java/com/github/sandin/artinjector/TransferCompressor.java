@@ -0,0 +1,214 @@
+package com.github.sandin.artinjector;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the bytes on the wire
+ * <p>
+ * Files are gzip-compressed on the fly and decompressed on the device with `gzip -dc`. Whether a
+ * file is worth compressing is decided by its size, the compression ratio of a sample of it, and
+ * the measured throughput of the link to the device.
+ */
+public class TransferCompressor {
+    public enum Mode {
+        AUTO, ALWAYS, NEVER
+    }
+
+    private static final long MIN_FILE_SIZE = 256 * 1024;
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+    // USB 2.0 in practice, used until the throughput of the link has been measured
+    private static final double DEFAULT_LINK_THROUGHPUT = 20 * 1024; // bytes per ms
+    // toybox gzip on a low-end device, conservatively
+    private static final double DEVICE_INFLATE_THROUGHPUT = 40 * 1024; // bytes per ms
+    // compression must save at least 10% of the transfer time
+    private static final double MIN_GAIN = 0.9;
+
+    /**
+     * measured link throughput of each device, bytes per ms
+     */
+    private static final Map<String, Double> sLinkThroughputs = new ConcurrentHashMap<>();
+
+    private final String mSerial;
+    private final Mode mMode;
+
+    public TransferCompressor(String serial, Mode mode) {
+        mSerial = serial;
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Record a finished transfer to measure the throughput of the link
+     *
+     * @param wireBytes bytes sent over the link
+     * @param millis    transfer time
+     */
+    public void recordTransfer(long wireBytes, long millis) {
+        if (wireBytes < MIN_FILE_SIZE || millis <= 0) {
+            return;
+        }
+        double throughput = (double) wireBytes / millis;
+        Double last = sLinkThroughputs.get(mSerial);
+        sLinkThroughputs.put(mSerial, last == null ? throughput : (last + throughput) / 2);
+    }
+
+    /**
+     * Decide whether a file should be compressed
+     *
+     * @param payload payload
+     * @return compress or not
+     */
+    public boolean shouldCompress(Payload payload) {
+        if (mMode != Mode.AUTO) {
+            return mMode == Mode.ALWAYS;
+        }
+        long size = payload.getSize();
+        if (size < MIN_FILE_SIZE) {
+            return false;
+        }
+
+        // deflate a sample of the file to estimate the compression ratio and speed
+        byte[] sample = new byte[(int) Math.min(size, SAMPLE_SIZE)];
+        try (InputStream in = payload.open()) {
+            int total = 0;
+            int read;
+            while (total < sample.length && (read = in.read(sample, total, sample.length - total)) != -1) {
+                total += read;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long startTime = System.nanoTime();
+        deflater.setInput(sample);
+        deflater.finish();
+        byte[] buffer = new byte[64 * 1024];
+        long compressedSize = 0;
+        while (!deflater.finished()) {
+            compressedSize += deflater.deflate(buffer);
+        }
+        deflater.end();
+        double deflateThroughput = sample.length / Math.max((System.nanoTime() - startTime) / 1e6, 0.001);
+        double ratio = (double) compressedSize / sample.length;
+
+        // compression and decompression are pipelined with the transfer, the slowest stage wins
+        double linkThroughput = sLinkThroughputs.getOrDefault(mSerial, DEFAULT_LINK_THROUGHPUT);
+        double plainCost = 1 / linkThroughput;
+        double compressedCost = Math.max(ratio / linkThroughput, Math.max(1 / deflateThroughput, 1 / DEVICE_INFLATE_THROUGHPUT));
+        return compressedCost < plainCost * MIN_GAIN;
+    }
+
+    /**
+     * Open a stream which reads the payload as gzip
+     *
+     * @param payload payload
+     * @return gzip stream
+     */
+    public static GzipInputStream openGzipStream(Payload payload) throws IOException {
+        return new GzipInputStream(payload.open());
+    }
+
+    /**
+     * Compress the bytes of the input stream into the gzip format while reading
+     */
+    public static class GzipInputStream extends FilterInputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mInputBuffer = new byte[64 * 1024];
+        private final byte[] mOutputBuffer = new byte[64 * 1024];
+        private int mOutputOffset = 0;
+        private int mOutputLength = 0;
+        private int mState = 1; // 1: deflate, 2: trailer, 3: eof
+        private long mInputBytes = 0;
+        private long mOutputBytes = 0;
+
+        private GzipInputStream(InputStream in) {
+            super(in);
+            // the header is the first output
+            System.arraycopy(HEADER, 0, mOutputBuffer, 0, HEADER.length);
+            mOutputLength = HEADER.length;
+        }
+
+        public long getInputBytes() {
+            return mInputBytes;
+        }
+
+        public long getOutputBytes() {
+            return mOutputBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (mOutputOffset == mOutputLength) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, mOutputLength - mOutputOffset);
+            System.arraycopy(mOutputBuffer, mOutputOffset, b, off, count);
+            mOutputOffset += count;
+            mOutputBytes += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            mOutputOffset = 0;
+            mOutputLength = 0;
+            if (mState == 1) {
+                if (mDeflater.needsInput()) {
+                    int read = in.read(mInputBuffer);
+                    if (read == -1) {
+                        mDeflater.finish();
+                    } else {
+                        mCrc.update(mInputBuffer, 0, read);
+                        mInputBytes += read;
+                        mDeflater.setInput(mInputBuffer, 0, read);
+                    }
+                }
+                mOutputLength = mDeflater.deflate(mOutputBuffer);
+                if (mDeflater.finished()) {
+                    mState = 2;
+                }
+                return true;
+            }
+            if (mState == 2) {
+                writeInt((int) mCrc.getValue(), 0);
+                writeInt((int) mInputBytes, 4);
+                mOutputLength = 8;
+                mState = 3;
+                return true;
+            }
+            return false;
+        }
+
+        private void writeInt(int value, int offset) {
+            mOutputBuffer[offset] = (byte) value;
+            mOutputBuffer[offset + 1] = (byte) (value >> 8);
+            mOutputBuffer[offset + 2] = (byte) (value >> 16);
+            mOutputBuffer[offset + 3] = (byte) (value >> 24);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDeflater.end();
+            super.close();
+        }
+    }
+}
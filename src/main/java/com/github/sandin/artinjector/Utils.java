@@ -1,12 +1,6 @@
 package com.github.sandin.artinjector;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.Properties;
 
 public class Utils {
@@ -16,38 +10,6 @@ public class Utils {
         return prop.getProperty("os.name");
     }
 
-    public static boolean checkAdbProcess(String os) {
-        boolean flag = false;
-        String checkCommand;
-        if (os.contains("Windows")) {
-            checkCommand = "tasklist";
-        } else {
-            checkCommand = "top | grep adb";
-        }
-        try {
-            Process p = Runtime.getRuntime().exec(checkCommand);
-            BufferedReader bw = new BufferedReader(new InputStreamReader(p
-                    .getInputStream()));
-            String str = "";
-            StringBuffer sb = new StringBuffer();
-            while (true) {
-                str = bw.readLine();
-                if (str != null) {
-                    sb.append(str.toLowerCase());
-                } else {
-                    break;
-                }
-            }
-            String adb = "adb.exe";
-            if (sb.toString().contains(adb)) {
-                flag = true;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return flag;
-    }
-
     public static Boolean checkSoPaths(String[] soPaths) {
         for (String soPath : soPaths) {
             File soFile = new File(soPath);
@@ -61,20 +23,12 @@ public class Utils {
         return true;
     }
 
-
-    private static void bindPort(String host, int port) throws Exception {
-        Socket s = new Socket();
-        s.bind(new InetSocketAddress(host, port));
-        s.close();
-    }
-
-    public static boolean checkPort(int port) {
-        try {
-            bindPort("0.0.0.0", port);
-            bindPort(InetAddress.getLocalHost().getHostAddress(), port);
-            return true;
-        } catch (Exception e) {
-            return false;
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
         }
+        return sb.toString();
     }
 }
@@ -0,0 +1,324 @@
+package com.github.sandin.artinjector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdbConnectionTest {
+    private static final String SERIAL = "emulator-5554";
+
+    private FakeAdbServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeAdbServer();
+        AdbConnection.setServerAddress(mServer.getAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        AdbConnection.setServerAddress(null);
+        mServer.close();
+    }
+
+    @Test
+    public void serverVersion() {
+        assertEquals(0x29, AdbConnection.getServerVersion());
+        assertEquals("host:version", mServer.mRequests.get(0));
+    }
+
+    @Test
+    public void serverVersionWithoutServer() throws IOException {
+        mServer.close();
+        assertEquals(-1, AdbConnection.getServerVersion());
+    }
+
+    @Test
+    public void shellV2ReturnsExitCode() throws IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int exitCode = AdbConnection.execShellV2(SERIAL, "exit 3",
+                new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)), stdout);
+
+        assertEquals(3, exitCode);
+        // stdin is echoed to stdout, then "err" to stderr
+        assertEquals("helloerr", new String(stdout.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("host:transport:" + SERIAL, mServer.mRequests.get(0));
+        assertEquals("shell,v2,raw:exit 3", mServer.mRequests.get(1));
+    }
+
+    @Test
+    public void shellV2ExitCodeZero() throws IOException {
+        assertEquals(0, AdbConnection.execShellV2(SERIAL, "exit 0", null, null));
+    }
+
+    @Test
+    public void syncPush() throws IOException {
+        // larger than one DATA packet
+        byte[] data = new byte[150 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        try (AdbConnection connection = AdbConnection.openSync(SERIAL)) {
+            connection.syncPush(new ByteArrayInputStream(data), "/data/local/tmp/a.so", 0644);
+            connection.syncPush(new ByteArrayInputStream(new byte[0]), "/data/local/tmp/empty", 0600);
+        }
+
+        assertArrayEquals(data, mServer.mFiles.get("/data/local/tmp/a.so," + 0644));
+        assertArrayEquals(new byte[0], mServer.mFiles.get("/data/local/tmp/empty," + 0600));
+        assertEquals("host:transport:" + SERIAL, mServer.mRequests.get(0));
+        assertEquals("sync:", mServer.mRequests.get(1));
+    }
+
+    @Test
+    public void syncPushFail() throws IOException {
+        try (AdbConnection connection = AdbConnection.openSync(SERIAL)) {
+            connection.syncPush(new ByteArrayInputStream(new byte[10]), "/readonly/a.so", 0644);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Read-only file system"));
+        }
+    }
+
+    @Test
+    public void trackJdwpUntilMatch() throws IOException {
+        String pid = AdbConnection.track(SERIAL, "track-jdwp", Deadline.after(5000),
+                update -> update.contains("4242\n") ? "4242" : null);
+
+        assertEquals("4242", pid);
+        assertEquals("track-jdwp", mServer.mRequests.get(1));
+    }
+
+    @Test
+    public void trackJdwpTimeout() throws IOException {
+        long startTime = System.currentTimeMillis();
+        assertNull(AdbConnection.track(SERIAL, "track-jdwp", Deadline.after(300), update -> null));
+        assertTrue(System.currentTimeMillis() - startTime < 3000);
+    }
+
+    @Test
+    public void trackJdwpCancel() throws IOException {
+        Deadline deadline = Deadline.after(10000);
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ignore) {
+            }
+            deadline.cancel();
+        }).start();
+        assertNull(AdbConnection.track(SERIAL, "track-jdwp", deadline, update -> null));
+    }
+
+    @Test
+    public void forwardTcp0() throws IOException {
+        assertEquals(34567, AdbConnection.forward(SERIAL, "jdwp:4242"));
+        assertEquals("host-serial:" + SERIAL + ":forward:tcp:0;jdwp:4242", mServer.mRequests.get(0));
+    }
+
+    @Test
+    public void unknownServiceFails() {
+        try {
+            AdbConnection.openService(SERIAL, "unknown:");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown service"));
+        }
+    }
+
+    /**
+     * Adb server which serves one device with canned responses
+     */
+    private static class FakeAdbServer implements Closeable {
+        final List<String> mRequests = new CopyOnWriteArrayList<>();
+        final Map<String, byte[]> mFiles = new ConcurrentHashMap<>(); // key: path,mode
+
+        private final ServerSocket mServerSocket;
+        private final Thread mAcceptThread;
+
+        FakeAdbServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            mAcceptThread = new Thread(() -> {
+                while (true) {
+                    Socket socket;
+                    try {
+                        socket = mServerSocket.accept();
+                    } catch (IOException e) {
+                        return; // closed
+                    }
+                    new Thread(() -> handle(socket)).start();
+                }
+            });
+            mAcceptThread.setDaemon(true);
+            mAcceptThread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), mServerSocket.getLocalPort());
+        }
+
+        private void handle(Socket socket) {
+            try (Socket ignored = socket) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    String request = readString(in, Integer.parseInt(readString(in, 4), 16));
+                    mRequests.add(request);
+                    if (request.equals("host:version")) {
+                        out.write(okay("0029"));
+                        return;
+                    } else if (request.startsWith("host:transport:")) {
+                        out.write(okay(null));
+                    } else if (request.startsWith("shell,v2,raw:")) {
+                        out.write(okay(null));
+                        shell(in, out, request.substring("shell,v2,raw:".length()));
+                        return;
+                    } else if (request.equals("sync:")) {
+                        out.write(okay(null));
+                        sync(in, out);
+                        return;
+                    } else if (request.equals("track-jdwp")) {
+                        out.write(okay(null));
+                        out.write(lengthPrefixed("100\n"));
+                        out.write(lengthPrefixed("100\n4242\n"));
+                        while (in.read() != -1) {
+                            // until the client closes the connection
+                        }
+                        return;
+                    } else if (request.contains(":forward:tcp:0;")) {
+                        out.write(okay(null));
+                        out.write(okay("34567"));
+                        return;
+                    } else {
+                        out.write(("FAIL" + new String(lengthPrefixed("unknown service: " + request), StandardCharsets.UTF_8))
+                                .getBytes(StandardCharsets.UTF_8));
+                        return;
+                    }
+                }
+            } catch (EOFException ignore) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Echo stdin to stdout, write "err" to stderr, then exit with the code of `exit <code>`
+         */
+        private void shell(DataInputStream in, OutputStream out, String command) throws IOException {
+            ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+            while (true) {
+                int id = in.readUnsignedByte();
+                byte[] data = new byte[readInt(in)];
+                in.readFully(data);
+                if (id == 0) {
+                    stdin.write(data);
+                } else if (id == 4) {
+                    break;
+                }
+            }
+            writePacket(out, 1, stdin.toByteArray());
+            writePacket(out, 2, "err".getBytes(StandardCharsets.UTF_8));
+            writePacket(out, 3, new byte[]{(byte) Integer.parseInt(command.substring("exit ".length()))});
+        }
+
+        private void sync(DataInputStream in, OutputStream out) throws IOException {
+            while (true) {
+                String id = readString(in, 4);
+                int length = readInt(in);
+                if (!id.equals("SEND")) {
+                    return;
+                }
+                String pathAndMode = readString(in, length);
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                while (true) {
+                    id = readString(in, 4);
+                    length = readInt(in);
+                    if (id.equals("DATA")) {
+                        byte[] chunk = new byte[length];
+                        in.readFully(chunk);
+                        data.write(chunk);
+                    } else if (id.equals("DONE")) {
+                        break;
+                    } else {
+                        throw new IOException("unexpected sync packet: " + id);
+                    }
+                }
+                if (pathAndMode.startsWith("/readonly/")) {
+                    byte[] message = "Read-only file system".getBytes(StandardCharsets.UTF_8);
+                    out.write("FAIL".getBytes(StandardCharsets.US_ASCII));
+                    out.write(littleEndian(message.length));
+                    out.write(message);
+                    return;
+                }
+                mFiles.put(pathAndMode, data.toByteArray());
+                out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                out.write(littleEndian(0));
+            }
+        }
+
+        private static byte[] okay(String data) {
+            String response = "OKAY";
+            if (data != null) {
+                response += new String(lengthPrefixed(data), StandardCharsets.UTF_8);
+            }
+            return response.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] lengthPrefixed(String data) {
+            return (String.format("%04x", data.length()) + data).getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void writePacket(OutputStream out, int id, byte[] data) throws IOException {
+            out.write(id);
+            out.write(littleEndian(data.length));
+            out.write(data);
+        }
+
+        private static byte[] littleEndian(int value) {
+            return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+        }
+
+        private static int readInt(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[4];
+            in.readFully(bytes);
+            return (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+        }
+
+        private static String readString(DataInputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+            try {
+                // the socket is closed once the blocked accept returns
+                mAcceptThread.join();
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+}
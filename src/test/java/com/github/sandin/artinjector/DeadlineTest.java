@@ -0,0 +1,60 @@
+package com.github.sandin.artinjector;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeadlineTest {
+
+    @Test
+    public void watchClosesOnExpiry() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        Deadline deadline = Deadline.after(50);
+        deadline.watch(closed::countDown);
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void watchClosesOnCancel() {
+        CountDownLatch closed = new CountDownLatch(1);
+        Deadline deadline = Deadline.never();
+        deadline.watch(closed::countDown);
+        deadline.cancel();
+        deadline.cancel();
+        assertEquals(0, closed.getCount());
+    }
+
+    @Test
+    public void closedWatchNeverFires() throws InterruptedException {
+        int[] closes = {0};
+        Closeable resource = () -> closes[0]++;
+        Deadline deadline = Deadline.after(50);
+        deadline.watch(resource).close();
+        deadline.cancel();
+        Thread.sleep(100);
+        assertEquals(0, closes[0]);
+    }
+
+    @Test
+    public void boundAndExpiry() {
+        Deadline deadline = Deadline.never();
+        assertEquals(10000, deadline.bound(10000));
+        assertFalse(deadline.isExpired());
+        deadline.cancel();
+        assertEquals(1, deadline.bound(10000));
+        try {
+            deadline.throwIfExpired("push");
+            fail();
+        } catch (InterruptedIOException e) {
+            assertEquals("push is cancelled", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.sandin.artinjector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeltaPusherTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    @Test
+    public void unchangedFileIsOneRemoteCopy() throws Exception {
+        byte[] remote = randomBytes(8 * BLOCK_SIZE + 100, 1);
+        DeltaPusher.Delta delta = diff(remote, remote);
+
+        assertEquals(9, delta.blocks);
+        assertEquals(0, delta.changedBlocks);
+        assertEquals(0, delta.data.size());
+        assertEquals(1, delta.copies.size());
+        assertCopy(delta.copies.get(0), DeltaPusher.Copy.SOURCE_REMOTE, 0, 9);
+        assertArrayEquals(remote, reassemble(remote, delta));
+    }
+
+    @Test
+    public void changedBlockIsSentAlone() throws Exception {
+        byte[] remote = randomBytes(8 * BLOCK_SIZE, 2);
+        byte[] local = remote.clone();
+        local[3 * BLOCK_SIZE + 10] ^= 1;
+        DeltaPusher.Delta delta = diff(remote, local);
+
+        assertEquals(1, delta.changedBlocks);
+        assertEquals(BLOCK_SIZE, delta.data.size());
+        assertEquals(3, delta.copies.size());
+        assertCopy(delta.copies.get(0), DeltaPusher.Copy.SOURCE_REMOTE, 0, 3);
+        assertCopy(delta.copies.get(1), DeltaPusher.Copy.SOURCE_DELTA, 0, 1);
+        assertCopy(delta.copies.get(2), DeltaPusher.Copy.SOURCE_REMOTE, 4, 4);
+        assertArrayEquals(local, reassemble(remote, delta));
+    }
+
+    @Test
+    public void movedBlocksAreFoundAtAnyIndex() throws Exception {
+        byte[] remote = randomBytes(6 * BLOCK_SIZE, 3);
+        // local: remote blocks 4, 5, then 0..3, then a new tail
+        ByteArrayOutputStream local = new ByteArrayOutputStream();
+        local.write(remote, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE);
+        local.write(remote, 0, 4 * BLOCK_SIZE);
+        local.write(randomBytes(300, 4));
+        DeltaPusher.Delta delta = diff(remote, local.toByteArray());
+
+        assertEquals(7, delta.blocks);
+        assertEquals(1, delta.changedBlocks);
+        assertEquals(300, delta.data.size());
+        assertCopy(delta.copies.get(0), DeltaPusher.Copy.SOURCE_REMOTE, 4, 2);
+        assertCopy(delta.copies.get(1), DeltaPusher.Copy.SOURCE_REMOTE, 0, 4);
+        assertCopy(delta.copies.get(2), DeltaPusher.Copy.SOURCE_DELTA, 0, 1);
+        assertArrayEquals(local.toByteArray(), reassemble(remote, delta));
+    }
+
+    @Test
+    public void md5IsOfLocalFile() throws Exception {
+        byte[] remote = randomBytes(3 * BLOCK_SIZE, 5);
+        byte[] local = randomBytes(3 * BLOCK_SIZE, 6);
+        DeltaPusher.Delta delta = diff(remote, local);
+
+        assertEquals(3, delta.changedBlocks);
+        assertEquals(Utils.toHex(MessageDigest.getInstance("MD5").digest(local)), delta.md5);
+        assertArrayEquals(local, reassemble(remote, delta));
+    }
+
+    private static DeltaPusher.Delta diff(byte[] remote, byte[] local) throws Exception {
+        return DeltaPusher.diff(new ByteArrayInputStream(local), blockChecksums(remote), BLOCK_SIZE);
+    }
+
+    /**
+     * Same as the `dd | md5sum` loop on the device
+     */
+    private static List<String> blockChecksums(byte[] data) throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+            byte[] block = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + BLOCK_SIZE));
+            blocks.add(Utils.toHex(MessageDigest.getInstance("MD5").digest(block)));
+        }
+        return blocks;
+    }
+
+    /**
+     * Same as the `dd if=... bs=... skip=... count=...` script on the device
+     */
+    private static byte[] reassemble(byte[] remote, DeltaPusher.Delta delta) {
+        byte[] data = delta.data.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (DeltaPusher.Copy copy : delta.copies) {
+            byte[] input = copy.source == DeltaPusher.Copy.SOURCE_REMOTE ? remote : data;
+            int start = Math.min(input.length, copy.start * BLOCK_SIZE);
+            int end = Math.min(input.length, (copy.start + copy.count) * BLOCK_SIZE);
+            out.write(input, start, end - start);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertCopy(DeltaPusher.Copy copy, int source, int start, int count) {
+        assertEquals(source, copy.source);
+        assertEquals(start, copy.start);
+        assertEquals(count, copy.count);
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.sandin.artinjector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractionCacheTest {
+    private File mDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("extract-test").toFile();
+        mCacheDir = new File(mDir, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    @Test
+    public void hitReturnsTheSameFiles() throws IOException {
+        ExtractionCache cache = new ExtractionCache(mCacheDir, ExtractionCache.DEFAULT_MAX_SIZE);
+        Payload apk = file("a.apk", 1);
+        List<Payload> entries = Collections.singletonList(file("liba.so", 100));
+        try (ExtractionCache.Lease first = cache.get(apk, "arm64-v8a", entries);
+             ExtractionCache.Lease second = cache.get(apk, "arm64-v8a", entries)) {
+            assertEquals(first.getPayloads().get(0).getFile(), second.getPayloads().get(0).getFile());
+            assertArrayEquals(Files.readAllBytes(entries.get(0).getFile().toPath()),
+                    Files.readAllBytes(first.getPayloads().get(0).getFile().toPath()));
+        }
+    }
+
+    @Test
+    public void leasedEntryIsNotEvicted() throws IOException {
+        ExtractionCache cache = new ExtractionCache(mCacheDir, 0); // every other entry is evicted
+        ExtractionCache.Lease a = cache.get(file("a.apk", 1), "x86", Collections.singletonList(file("liba.so", 100)));
+        File aFile = a.getPayloads().get(0).getFile();
+
+        try (ExtractionCache.Lease b = cache.get(file("b.apk", 2), "x86", Collections.singletonList(file("libb.so", 100)))) {
+            assertTrue(aFile.exists());
+            a.close();
+        }
+        try (ExtractionCache.Lease ignored = cache.get(file("c.apk", 3), "x86", Collections.singletonList(file("libc.so", 100)))) {
+            assertFalse(aFile.exists());
+        }
+    }
+
+    @Test
+    public void incompleteEntryIsReplaced() throws IOException {
+        ExtractionCache cache = new ExtractionCache(mCacheDir, ExtractionCache.DEFAULT_MAX_SIZE);
+        Payload apk = file("a.apk", 1);
+        List<Payload> entries = Collections.singletonList(file("liba.so", 100));
+        File cached;
+        try (ExtractionCache.Lease lease = cache.get(apk, "x86", entries)) {
+            cached = lease.getPayloads().get(0).getFile();
+        }
+        assertTrue(cached.delete());
+
+        try (ExtractionCache.Lease lease = cache.get(apk, "x86", entries)) {
+            assertEquals(cached, lease.getPayloads().get(0).getFile());
+            assertTrue(cached.exists());
+        }
+    }
+
+    private Payload file(String name, int size) throws IOException {
+        File file = new File(mDir, name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (name.hashCode() + i);
+        }
+        Files.write(file.toPath(), data);
+        return Payload.of(file);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,245 @@
+package com.github.sandin.artinjector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InjectSchedulerTest {
+    private File mJournalFile;
+    private final List<String> mRuns = Collections.synchronizedList(new ArrayList<>()); // package names
+    private final List<Long> mRunTimes = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, String[]> mArgs = new ConcurrentHashMap<>(); // key: package name
+    // package name -> error codes of the attempts, success after them
+    private final Map<String, List<Integer>> mErrors = new ConcurrentHashMap<>();
+    private final Map<String, long[]> mIntervals = new ConcurrentHashMap<>(); // package name -> start and end time
+    private long mRunDelay = 0;
+    private InjectScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        mJournalFile = File.createTempFile("jobs", ".journal");
+        mJournalFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        mJournalFile.delete();
+    }
+
+    @Test
+    public void journalRoundTrip() throws IOException {
+        InjectScheduler scheduler = new InjectScheduler(null, mJournalFile);
+        String[] args = {"-i", "/tmp/dir with space/a,b.so", "-p", "com.a", "--compress", "never", "tab\there", ""};
+        scheduler.submit(job("s1", "com.low", 0, args));
+        scheduler.submit(job("s1", "com.high", 10, null));
+        scheduler.submit(job(null, "com.any", 0, new String[0]));
+        assertEquals(3, Files.readAllLines(mJournalFile.toPath(), StandardCharsets.UTF_8).size());
+
+        mScheduler = newScheduler();
+        assertEquals(3, mScheduler.getQueueDepth());
+        assertEquals(2, mScheduler.getQueueDepth("s1"));
+        assertEquals(1, mScheduler.getQueueDepth(null));
+        mScheduler.start();
+        waitForRuns(3);
+
+        // higher priority first on the same device
+        assertTrue(mRuns.indexOf("com.high") < mRuns.indexOf("com.low"));
+        assertArrayEquals(args, mArgs.get("com.low"));
+        assertFalse(mArgs.containsKey("com.high")); // the injector of the scheduler
+        assertArrayEquals(new String[0], mArgs.get("com.any"));
+        waitForEmptyJournal();
+    }
+
+    @Test
+    public void resumedJobsKeepTheirAttempts() throws IOException {
+        InjectScheduler scheduler = new InjectScheduler(null, mJournalFile);
+        scheduler.submit(job("s1", "com.a", 0, null));
+        String line = Files.readAllLines(mJournalFile.toPath(), StandardCharsets.UTF_8).get(0);
+        String[] fields = line.split("\t", -1);
+        fields[2] = "2"; // attempts
+        Files.write(mJournalFile.toPath(), (String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        mErrors.put("com.a", new ArrayList<>(Collections.singletonList(ErrorCodes.CANT_ATTACH_APP)));
+        mScheduler = newScheduler();
+        mScheduler.setMaxAttempts(3);
+        mScheduler.start();
+        waitForRuns(1);
+        waitForEmptyJournal();
+        // the third attempt failed, no more retries
+        assertEquals(1, mRuns.size());
+        assertEquals(0, mScheduler.getQueueDepth());
+    }
+
+    @Test
+    public void retryWithBackoff() throws IOException {
+        mScheduler = newScheduler();
+        mScheduler.setBackoff(100);
+        mScheduler.setMaxAttempts(3);
+        mErrors.put("com.flaky", new ArrayList<>(Arrays.asList(ErrorCodes.CANT_ATTACH_APP, ErrorCodes.CANT_GET_CLIENT)));
+        mErrors.put("com.broken", new ArrayList<>(Collections.singletonList(ErrorCodes.LOAD_SO_FAIL)));
+
+        InjectScheduler.Job flaky = mScheduler.submit(job("s1", "com.flaky", 10, null));
+        InjectScheduler.Job next = mScheduler.submit(job("s1", "com.next", 0, null));
+        InjectScheduler.Job broken = mScheduler.submit(job("s2", "com.broken", 0, null));
+        mScheduler.start();
+
+        assertTrue(flaky.getFuture().join().isSuccess());
+        assertTrue(next.getFuture().join().isSuccess());
+        InjectResult brokenResult = broken.getFuture().join();
+        assertFalse(brokenResult.isSuccess());
+        assertEquals(ErrorCodes.LOAD_SO_FAIL, brokenResult.getErrorCode()); // not transient, not retried
+
+        List<String> s1Runs = new ArrayList<>(mRuns);
+        s1Runs.remove("com.broken");
+        // the lower priority job runs while the flaky one backs off
+        assertEquals(Arrays.asList("com.flaky", "com.next", "com.flaky", "com.flaky"), s1Runs);
+
+        List<Long> flakyTimes = new ArrayList<>();
+        for (int i = 0; i < mRuns.size(); i++) {
+            if (mRuns.get(i).equals("com.flaky")) {
+                flakyTimes.add(mRunTimes.get(i));
+            }
+        }
+        // the backoff doubles on each retry
+        assertTrue(flakyTimes.get(1) - flakyTimes.get(0) >= 100);
+        assertTrue(flakyTimes.get(2) - flakyTimes.get(1) >= 200);
+        waitForEmptyJournal();
+    }
+
+    @Test
+    public void jobWithoutSerialConflictsWithEveryDevice() {
+        mScheduler = newScheduler();
+        mScheduler.setMaxJobs(4);
+        mRunDelay = 100;
+        InjectScheduler.Job first = mScheduler.submit(job("s1", "com.a", 0, null));
+        InjectScheduler.Job any = mScheduler.submit(job(null, "com.b", 0, null));
+        InjectScheduler.Job second = mScheduler.submit(job("s2", "com.c", 0, null));
+        mScheduler.start();
+
+        assertTrue(first.getFuture().join().isSuccess());
+        assertTrue(any.getFuture().join().isSuccess());
+        assertTrue(second.getFuture().join().isSuccess());
+        // the jobs of different devices run together, the job without a serial may be on any of them
+        assertTrue(overlaps(mIntervals.get("com.a"), mIntervals.get("com.c")));
+        assertFalse(overlaps(mIntervals.get("com.b"), mIntervals.get("com.a")));
+        assertFalse(overlaps(mIntervals.get("com.b"), mIntervals.get("com.c")));
+    }
+
+    @Test
+    public void outputGoesToSubmitter() {
+        ThreadOutputStream.install();
+        mScheduler = newScheduler();
+        mScheduler.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InjectScheduler.Job job;
+        ThreadOutputStream.route(out);
+        try {
+            job = mScheduler.submit(job("s1", "com.a", 0, null));
+        } finally {
+            ThreadOutputStream.route(null);
+        }
+        job.getFuture().join();
+
+        assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8).contains("inject com.a"));
+    }
+
+    private InjectScheduler newScheduler() {
+        InjectScheduler scheduler = new InjectScheduler(new FakeArtInjector(null), mJournalFile);
+        scheduler.setMaxJobs(1);
+        scheduler.setInjectorFactory(FakeArtInjector::new);
+        return scheduler;
+    }
+
+    private static InjectScheduler.Job job(String serial, String packageName, int priority, String[] args) {
+        return new InjectScheduler.Job(serial, packageName, new File[]{new File("/tmp/a.so")}, null, 1000, priority, args);
+    }
+
+    private static boolean overlaps(long[] a, long[] b) {
+        return a[0] < b[1] && b[0] < a[1];
+    }
+
+    private void waitForRuns(int count) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mRuns.size() < count && System.currentTimeMillis() < deadline) {
+            sleep();
+        }
+        assertEquals(count, mRuns.size());
+    }
+
+    private void waitForEmptyJournal() throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.readAllLines(mJournalFile.toPath(), StandardCharsets.UTF_8).isEmpty()) {
+                return;
+            }
+            sleep();
+        }
+        throw new AssertionError("journal is not empty");
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Injector which fails with the planned errors of the package
+     */
+    private class FakeArtInjector extends ArtInjector {
+        private final String[] mJobArgs;
+
+        FakeArtInjector(String[] args) {
+            mJobArgs = args;
+        }
+
+        @Override
+        public InjectResult injectDevice(String serial, String packageName, File[] soFiles, String breakPoints, long timeout) {
+            System.out.println("inject " + packageName);
+            if (mRunDelay > 0) {
+                long startTime = System.currentTimeMillis();
+                try {
+                    Thread.sleep(mRunDelay);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                mIntervals.put(packageName, new long[]{startTime, System.currentTimeMillis()});
+            }
+            if (mJobArgs != null) {
+                mArgs.put(packageName, mJobArgs);
+            }
+            InjectResult result = new InjectResult(serial);
+            List<Integer> errors = mErrors.get(packageName);
+            if (errors != null && !errors.isEmpty()) {
+                result.setError(errors.remove(0), "planned error");
+            } else {
+                result.setSuccess();
+            }
+            mRunTimes.add(System.currentTimeMillis());
+            mRuns.add(packageName);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.sandin.artinjector;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.BooleanValue;
+import com.sun.jdi.ClassType;
+import com.sun.jdi.ObjectReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JdwpFileTransferTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("jdwp").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void transferSamePathTwice() throws Exception {
+        File remoteFile = new File(mDir, "libfoo.so");
+        byte[] first = randomBytes(200 * 1024, 1);
+        byte[] second = randomBytes(100 * 1024, 2);
+
+        transfer(first, remoteFile);
+        assertArrayEquals(first, Files.readAllBytes(remoteFile.toPath()));
+        assertFalse(isWritable(remoteFile));
+
+        // the file of the first run is read-only
+        transfer(second, remoteFile);
+        assertArrayEquals(second, Files.readAllBytes(remoteFile.toPath()));
+        assertFalse(isWritable(remoteFile));
+        assertFalse(new File(remoteFile.getPath() + ".tmp").exists());
+    }
+
+    private void transfer(byte[] data, File remoteFile) throws IOException {
+        File localFile = new File(mDir, "local");
+        Files.write(localFile.toPath(), data);
+        try {
+            JdwpFileTransfer transfer = new JdwpFileTransfer(new FakeArtDebugger(), null);
+            transfer.transfer(Collections.singletonList(Payload.of(localFile)),
+                    Collections.singletonList(remoteFile.getPath()));
+        } finally {
+            localFile.delete();
+        }
+    }
+
+    /**
+     * @return whether the owner can write the file, unlike File.canWrite it is false for root too
+     */
+    private static boolean isWritable(File file) throws IOException {
+        return Files.getPosixFilePermissions(file.toPath()).contains(PosixFilePermission.OWNER_WRITE);
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Debugger which runs the invocations of the transfer on local objects, like an app which can not
+     * open a read-only file for writing
+     */
+    private static class FakeArtDebugger extends ArtDebugger {
+        private final Map<Object, Object> mObjects = new IdentityHashMap<>(); // mirror -> local object
+
+        @Override
+        public ClassType getClassType(String className) {
+            return null; // no Base64 decoder
+        }
+
+        @Override
+        public ArrayReference newByteArray(int length) {
+            return mirror(ArrayReference.class, new byte[length]);
+        }
+
+        @Override
+        public void setBytes(ArrayReference array, byte[] data, int offset, int length) {
+            System.arraycopy(data, offset, (byte[]) mObjects.get(array), 0, length);
+        }
+
+        @Override
+        public void release(ObjectReference object) {
+            mObjects.remove(object);
+        }
+
+        @Override
+        public EvaluateResult evaluateStaticMethod(
+                EvaluateContext evaluateContext, String className, String methodName, String methodSignature, Object[] args) {
+            try {
+                switch (className + "." + methodName + methodSignature) {
+                    case "java.io.File.<init>(Ljava/lang/String;)V":
+                        return new EvaluateResult(mirror(ObjectReference.class, new File((String) args[0])), null);
+                    case "java.io.FileOutputStream.<init>(Ljava/io/File;)V":
+                        File file = (File) mObjects.get(args[0]);
+                        if (file.exists() && !isWritable(file)) {
+                            return new EvaluateResult(null, "java.io.FileNotFoundException: " + file + ": open failed: EACCES");
+                        }
+                        return new EvaluateResult(mirror(ObjectReference.class, new FileOutputStream(file)), null);
+                    default:
+                        return new EvaluateResult(null, "unexpected method: " + className + "." + methodName + methodSignature);
+                }
+            } catch (IOException e) {
+                return new EvaluateResult(null, e.toString());
+            }
+        }
+
+        @Override
+        public EvaluateResult evaluateMethod(
+                EvaluateContext evaluateContext, String methodName, String methodSignature, ObjectReference objectReference, Object[] args) {
+            Object object = mObjects.get(objectReference);
+            try {
+                switch (methodName + methodSignature) {
+                    case "write([BII)V":
+                        ((FileOutputStream) object).write((byte[]) mObjects.get(args[0]), (Integer) args[1], (Integer) args[2]);
+                        return new EvaluateResult(null, null);
+                    case "close()V":
+                        ((FileOutputStream) object).close();
+                        return new EvaluateResult(null, null);
+                    case "delete()Z":
+                        return new EvaluateResult(mirror(BooleanValue.class, ((File) object).delete()), null);
+                    case "setReadOnly()Z":
+                        return new EvaluateResult(mirror(BooleanValue.class, ((File) object).setReadOnly()), null);
+                    case "renameTo(Ljava/io/File;)Z":
+                        return new EvaluateResult(mirror(BooleanValue.class, ((File) object).renameTo((File) mObjects.get(args[0]))), null);
+                    default:
+                        return new EvaluateResult(null, "unexpected method: " + methodName + methodSignature);
+                }
+            } catch (IOException e) {
+                return new EvaluateResult(null, e.toString());
+            }
+        }
+
+        private <T> T mirror(Class<T> type, Object object) {
+            T mirror = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "value":
+                        return object;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "mirror of " + object;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }));
+            mObjects.put(mirror, object);
+            return mirror;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.sandin.artinjector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void bucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(MS - 1);
+        histogram.record(MS); // first value of <2ms
+        histogram.record(2 * MS - 1);
+        histogram.record(2 * MS);
+        histogram.record(1023 * MS);
+        histogram.record(1024 * MS); // first value of the last bucket
+        histogram.record(100000 * MS);
+
+        assertEquals("count=8, avg=" + histogram.getAverageMicros() + "us, max=100000000us"
+                        + ", <1ms: 2, <2ms: 2, <4ms: 1, <1024ms: 1, >=1024ms: 2",
+                histogram.toString());
+    }
+
+    @Test
+    public void averageAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getAverageMicros());
+        assertEquals("count=0, avg=0us, max=0us", histogram.toString());
+
+        histogram.record(1000);
+        histogram.record(3000);
+        assertEquals(2, histogram.getCount());
+        assertEquals(2, histogram.getAverageMicros());
+        assertEquals(3, histogram.getMaxMicros());
+    }
+}
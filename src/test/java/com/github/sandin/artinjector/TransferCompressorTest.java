@@ -0,0 +1,109 @@
+package com.github.sandin.artinjector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TransferCompressorTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("gzip-test", ".so");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void headerMatchesGzipOutputStream() throws IOException {
+        byte[] gzip = compress(new byte[]{1, 2, 3});
+        byte[] expected = compressWithJdk(new byte[]{1, 2, 3});
+
+        // magic, method and flags, the mtime/xfl/os bytes are informational
+        assertArrayEquals(Arrays.copyOfRange(expected, 0, 4), Arrays.copyOfRange(gzip, 0, 4));
+    }
+
+    @Test
+    public void trailerMatchesGzipOutputStream() throws IOException {
+        // larger than the buffers, and compressible and incompressible parts
+        byte[] data = new byte[300 * 1024];
+        new Random(7).nextBytes(data);
+        Arrays.fill(data, 0, 100 * 1024, (byte) 'a');
+        byte[] gzip = compress(data);
+        byte[] expected = compressWithJdk(data);
+
+        // CRC-32 and size of the input, little endian
+        assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 8, expected.length),
+                Arrays.copyOfRange(gzip, gzip.length - 8, gzip.length));
+        assertArrayEquals(data, decompressWithJdk(gzip));
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        byte[] gzip = compress(new byte[0]);
+        byte[] expected = compressWithJdk(new byte[0]);
+
+        assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 8, expected.length),
+                Arrays.copyOfRange(gzip, gzip.length - 8, gzip.length));
+        assertEquals(0, decompressWithJdk(gzip).length);
+    }
+
+    @Test
+    public void countsInputAndOutputBytes() throws IOException {
+        byte[] data = new byte[200 * 1024];
+        Files.write(mFile.toPath(), data);
+        try (TransferCompressor.GzipInputStream in = TransferCompressor.openGzipStream(Payload.of(mFile))) {
+            byte[] gzip = readAll(in);
+            assertEquals(data.length, in.getInputBytes());
+            assertEquals(gzip.length, in.getOutputBytes());
+        }
+    }
+
+    private byte[] compress(byte[] data) throws IOException {
+        Files.write(mFile.toPath(), data);
+        try (InputStream in = TransferCompressor.openGzipStream(Payload.of(mFile))) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] compressWithJdk(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompressWithJdk(byte[] gzip) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7000]; // not aligned with the buffers of the stream
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}